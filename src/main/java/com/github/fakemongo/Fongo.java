@@ -13,6 +13,11 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Faked out version of com.mongodb.Mongo
@@ -38,6 +43,8 @@ public class Fongo {
   private final ServerAddress serverAddress;
   private final MongoClient mongo;
   private final String name;
+  // Threads computing the keys of new indexes, created on first use.
+  private ExecutorService indexBuilders;
 
   /**
    * @param name Used only for a nice toString in case you have multiple instances
@@ -119,6 +126,30 @@ public class Fongo {
     return mongo.getWriteConcern();
   }
 
+  /**
+   * The threads computing the keys of the new indexes of big collections, shared by the databases of this instance :
+   * daemon threads, created on first use and stopped when idle.
+   *
+   * @return the executor of the index builds.
+   */
+  public synchronized ExecutorService getIndexBuilders() {
+    if (indexBuilders == null) {
+      int threads = Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "fongo-index-builder (" + name + ")");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.allowCoreThreadTimeOut(true);
+      indexBuilders = executor;
+    }
+    return indexBuilders;
+  }
+
   private MongoClient createMongo() {
     return MockMongoClient.create(this);
   }
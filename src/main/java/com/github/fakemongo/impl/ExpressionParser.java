@@ -7,7 +7,6 @@ import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.DBRefBase;
-import com.mongodb.FongoDBCollection;
 import com.mongodb.LazyDBObject;
 import com.mongodb.QueryOperators;
 import com.mongodb.util.JSON;
@@ -21,6 +20,7 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -179,7 +179,36 @@ public class ExpressionParser {
     return o instanceof DBObject && !(o instanceof List);
   }
 
+  /**
+   * Build the comparator for the $near/$nearSphere of the query.
+   *
+   * @param ref query.
+   * @return null if the query doesn't use $near/$nearSphere.
+   */
+  public Comparator<DBObject> buildNearComparator(DBObject ref) {
+    if (ref != null) {
+      for (String key : ref.keySet()) {
+        Object expression = ref.get(key);
+        if (expression instanceof DBObject) {
+          for (NearCommandFilterFactory nearFilterFactory : nearFilterFactories) {
+            if (nearFilterFactory.matchesCommand((DBObject) expression)) {
+              return nearFilterFactory.createComparator(Util.split(key), (DBObject) expression);
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
   public Filter buildFilter(DBObject ref) {
+    if (ref != null) {
+      // The queries of a known shape skip the building of the filters.
+      Filter compiled = FilterPlan.filter(this, filterPlans, ref);
+      if (compiled != null) {
+        return compiled;
+      }
+    }
     AndFilter andFilter = new AndFilter();
     if (ref != null) {
       for (String key : ref.keySet()) {
@@ -302,7 +331,7 @@ public class ExpressionParser {
     @Override
     public Filter createFilter(final List<String> path, final DBObject refExpression) {
       Collection queryList = typecast(command + " clause", refExpression.get(command), Collection.class);
-      final Set querySet = new HashSet(queryList);
+      final InValues querySet = new InValues(queryList);
       return new Filter() {
         @Override
         public boolean apply(DBObject o) {
@@ -321,7 +350,7 @@ public class ExpressionParser {
       };
     }
 
-    boolean compare(Object queryValueIgnored, Object storedValue, Set querySet) {
+    boolean compare(Object queryValueIgnored, Object storedValue, InValues querySet) {
       if (storedValue instanceof List) {
         for (Object valueItem : (List) storedValue) {
           if (querySet.contains(valueItem)) {
@@ -338,6 +367,57 @@ public class ExpressionParser {
     }
   }
 
+  /**
+   * The values of a $in/$nin. Numbers of different types match if they have the same value, as for an equality : 4
+   * matches 4.0.
+   */
+  static final class InValues {
+    private final Set<Object> values;
+    // The values of the numbers, null if none.
+    private final Set<BigDecimal> numbers;
+
+    InValues(Collection<?> values) {
+      this.values = new HashSet<Object>(values);
+      Set<BigDecimal> numbers = null;
+      for (Object value : values) {
+        BigDecimal number = numberValue(value);
+        if (number != null) {
+          if (numbers == null) {
+            numbers = new HashSet<BigDecimal>();
+          }
+          numbers.add(number);
+        }
+      }
+      this.numbers = numbers;
+    }
+
+    boolean contains(Object value) {
+      if (values.contains(value)) {
+        return true;
+      }
+      if (numbers == null) {
+        return false;
+      }
+      BigDecimal number = numberValue(value);
+      return number != null && numbers.contains(number);
+    }
+
+    /**
+     * The value of a number, the same for all its types ; null if not a number, or not a finite one.
+     */
+    private static BigDecimal numberValue(Object value) {
+      if (!(value instanceof Number)) {
+        return null;
+      }
+      if ((value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+          || (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()))) {
+        return null;
+      }
+      BigDecimal number = new BigDecimal(value.toString());
+      return number.signum() == 0 ? BigDecimal.ZERO : number.stripTrailingZeros();
+    }
+  }
+
   private final class NearCommandFilterFactory extends BasicCommandFilterFactory {
 
     final boolean spherical;
@@ -352,14 +432,20 @@ public class ExpressionParser {
     public Filter createFilter(final List<String> path, DBObject refExpression) {
       LOG.debug("path:{}, refExp:{}", path, refExpression);
       Number maxDistance = typecast(MAX_DISTANCE, refExpression.get(MAX_DISTANCE), Number.class);
-      final List<LatLong> coordinates;
+      return createNearFilter(path, coordinates(refExpression), maxDistance, spherical);
+    }
+
+    public Comparator<DBObject> createComparator(final List<String> path, DBObject refExpression) {
+      Number maxDistance = typecast(MAX_DISTANCE, refExpression.get(MAX_DISTANCE), Number.class);
+      return createNearComparator(path, coordinates(refExpression), maxDistance, spherical);
+    }
+
+    private List<LatLong> coordinates(DBObject refExpression) {
       if (refExpression.get(command) instanceof BasicDBList) {
-        coordinates = GeoUtil.latLon(Collections.singletonList(command), refExpression);// typecast(command, refExpression.get(command), List.class);
-      } else {
-        DBObject dbObject = typecast(command, refExpression.get(command), DBObject.class);
-        coordinates = GeoUtil.latLon(Arrays.asList("$geometry", "coordinates"), dbObject);
+        return GeoUtil.latLon(Collections.singletonList(command), refExpression);// typecast(command, refExpression.get(command), List.class);
       }
-      return createNearFilter(path, coordinates, maxDistance, spherical);
+      DBObject dbObject = typecast(command, refExpression.get(command), DBObject.class);
+      return GeoUtil.latLon(Arrays.asList("$geometry", "coordinates"), dbObject);
     }
   }
 
@@ -416,6 +502,14 @@ public class ExpressionParser {
   }
 
 
+  // Compiled filters of the shapes of queries.
+  private final Map<String, FilterPlan> filterPlans = FilterPlan.newCache();
+
+  private final List<NearCommandFilterFactory> nearFilterFactories = Arrays.asList(
+      new NearCommandFilterFactory(NEAR_SPHERE, true),
+      new NearCommandFilterFactory(NEAR, false)
+  );
+
   @SuppressWarnings("all")
   List<FilterFactory> filterFactories = Arrays.<FilterFactory>asList(
       new ConditionalOperatorFilterFactory(GTE) {
@@ -574,8 +668,8 @@ public class ExpressionParser {
           return createPatternFilter(path, pattern);
         }
       },
-      new NearCommandFilterFactory(NEAR_SPHERE, true),
-      new NearCommandFilterFactory(NEAR, false),
+      nearFilterFactories.get(0),
+      nearFilterFactories.get(1),
       new GeoWithinCommandFilterFactory(GEO_WITHIN),
       new BasicCommandFilterFactory(TYPE) {
         @Override
@@ -820,7 +914,7 @@ public class ExpressionParser {
    * @return
    */
   @SuppressWarnings("all")
-  private Integer compareObjects(Object queryValue, Object storedValue, boolean comparableFilter) {
+  Integer compareObjects(Object queryValue, Object storedValue, boolean comparableFilter) {
     LOG.debug("comparing {} and {}", queryValue, storedValue);
 
     if (isDBObjectButNotDBList(queryValue) && isDBObjectButNotDBList(storedValue)) {
@@ -1025,26 +1119,57 @@ public class ExpressionParser {
 
       @Override
       public boolean apply(DBObject o) {
-        boolean result = false;
+        Double distance = nearDistance(path, coordinate, maxDistance, sphere, o);
+        return distance != null && (maxDistance == null || distance < maxDistance.doubleValue());
+      }
+    };
+  }
 
-        List<LatLong> storedOption = GeoUtil.latLon(path, o);
-        if (!storedOption.isEmpty()) {
-          for (LatLong point : storedOption) {
+  /**
+   * Order objects by their distance to the point, nearest first.
+   * Distances are computed once per object : don't share the comparator between sorts.
+   */
+  public Comparator<DBObject> createNearComparator(final List<String> path, final List<LatLong> coordinates, final Number maxDistance, final boolean sphere) {
+    return new Comparator<DBObject>() {
+      final LatLong coordinate = coordinates.get(0); // TODO(twillouer) try to get all coordinates.
+      final Map<DBObject, Double> distances = new IdentityHashMap<DBObject, Double>();
 
-            double distance = GeoUtil.distanceInRadians(point, coordinate, sphere);
-            LOG.debug("distance : {}", distance);
-            result = maxDistance == null || distance < maxDistance.doubleValue();
-            o.put(FongoDBCollection.FONGO_SPECIAL_ORDER_BY, distance);
-            if (result) {
-              break;
-            }
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        return distance(o1).compareTo(distance(o2));
+      }
+
+      private Double distance(DBObject o) {
+        Double distance = distances.get(o);
+        if (distance == null) {
+          distance = nearDistance(path, coordinate, maxDistance, sphere, o);
+          if (distance == null) {
+            distance = Double.MAX_VALUE;
           }
+          distances.put(o, distance);
         }
-        return result;
+        return distance;
       }
     };
   }
 
+  /**
+   * Distance of the first point in maxDistance, or of the last point if none.
+   *
+   * @return null if the object doesn't have a point.
+   */
+  private Double nearDistance(List<String> path, LatLong coordinate, Number maxDistance, boolean sphere, DBObject o) {
+    Double result = null;
+    for (LatLong point : GeoUtil.latLon(path, o)) {
+      result = GeoUtil.distanceInRadians(point, coordinate, sphere);
+      LOG.debug("distance : {}", result);
+      if (maxDistance == null || result < maxDistance.doubleValue()) {
+        break;
+      }
+    }
+    return result;
+  }
+
   private Filter createGeowithinFilter(final List<String> path, final Geometry geometry) {
     return new Filter() {
 
@@ -0,0 +1,289 @@
+package com.github.fakemongo.impl;
+
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A query compiled for its shape (its fields, operators and types of values) : the fields and operators are read
+ * once, the values of a query are bound as the parameters of the plan. The queries with the same shape share the plan,
+ * their filters are not built again.
+ * <p/>
+ * Only the conjunctions of equalities, $gt/$gte/$lt/$lte, $in/$nin, $ne and $exists on fields are compiled, with the
+ * same results as the filters of {@link ExpressionParser}. The other queries get these filters.
+ * <p/>
+ * Each {@link ExpressionParser} has its own cache of plans.
+ */
+final class FilterPlan {
+  private static final int MAX_PLANS = 1000;
+  private static final List<String> OPERATORS = Arrays.asList(ExpressionParser.GT, ExpressionParser.GTE,
+      ExpressionParser.LT, ExpressionParser.LTE, ExpressionParser.IN, ExpressionParser.NIN, ExpressionParser.NE,
+      ExpressionParser.EXISTS);
+  // Equality, not an operator of the query.
+  private static final String EQ = "";
+  // Plan of the shapes which can't be compiled.
+  private static final FilterPlan NOT_COMPILED = new FilterPlan(new Leaf[0]);
+
+  private final Leaf[] leaves;
+
+  private FilterPlan(Leaf[] leaves) {
+    this.leaves = leaves;
+  }
+
+  /**
+   * A cache of plans by shape, the least recently used one dropped when full. Thread safe.
+   */
+  static Map<String, FilterPlan> newCache() {
+    return Collections.synchronizedMap(new LinkedHashMap<String, FilterPlan>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, FilterPlan> eldest) {
+        return size() > MAX_PLANS;
+      }
+    });
+  }
+
+  /**
+   * The filter of the query from the plan of its shape.
+   *
+   * @param plans the cache of the plans, NOT_COMPILED for the shapes which can't be compiled.
+   * @return null if the query can't be compiled.
+   */
+  static Filter filter(ExpressionParser expressionParser, Map<String, FilterPlan> plans, DBObject query) {
+    String shape = Util.queryShape(query);
+    FilterPlan plan = plans.get(shape);
+    if (plan == null) {
+      plan = compile(query);
+      plans.put(shape, plan);
+    }
+    return plan == NOT_COMPILED ? null : plan.bind(expressionParser, query);
+  }
+
+  private static FilterPlan compile(DBObject query) {
+    List<Leaf> leaves = new ArrayList<Leaf>();
+    for (String field : query.keySet()) {
+      if (field.startsWith("$")) {
+        return NOT_COMPILED;
+      }
+      Object value = query.get(field);
+      if (value instanceof Pattern || (value instanceof Map && !(value instanceof DBObject))) {
+        return NOT_COMPILED;
+      }
+      if (!(value instanceof DBObject) || value instanceof List || !hasOperator((DBObject) value)) {
+        // Equality, with a document or an array too.
+        leaves.add(new Leaf(field, EQ));
+        continue;
+      }
+      Set<String> operators = ((DBObject) value).keySet();
+      if (operators.size() > 2 || !OPERATORS.containsAll(operators)) {
+        return NOT_COMPILED;
+      }
+      for (String operator : operators) {
+        leaves.add(new Leaf(field, operator));
+      }
+    }
+    return new FilterPlan(leaves.toArray(new Leaf[leaves.size()]));
+  }
+
+  private static boolean hasOperator(DBObject expression) {
+    for (String key : expression.keySet()) {
+      if (key.startsWith("$")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The filter of a query with the shape of the plan.
+   */
+  private Filter bind(final ExpressionParser expressionParser, DBObject query) {
+    final Object[] parameters = new Object[leaves.length];
+    for (int i = 0; i < leaves.length; i++) {
+      Leaf leaf = leaves[i];
+      Object value = query.get(leaf.field);
+      if (leaf.operator == EQ) {
+        parameters[i] = value;
+      } else {
+        Object parameter = ((DBObject) value).get(leaf.operator);
+        if (leaf.operator.equals(ExpressionParser.IN) || leaf.operator.equals(ExpressionParser.NIN)) {
+          Collection<?> values = expressionParser.typecast(leaf.operator + " clause", parameter, Collection.class);
+          parameter = new ExpressionParser.InValues(values);
+        }
+        parameters[i] = parameter;
+      }
+    }
+    return new Filter() {
+      @Override
+      public boolean apply(DBObject o) {
+        for (int i = 0; i < leaves.length; i++) {
+          if (!leaves[i].apply(expressionParser, parameters[i], o)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * A condition on a field : its path is split once.
+   */
+  private static final class Leaf {
+    private final String field;
+    private final List<String> path;
+    // Operator of the query, or EQ.
+    private final String operator;
+
+    Leaf(String field, String operator) {
+      this.field = field;
+      this.path = field.indexOf('.') < 0 ? null : Util.split(field);
+      this.operator = operator;
+    }
+
+    boolean apply(ExpressionParser expressionParser, Object parameter, DBObject o) {
+      if (path == null) {
+        // Top-level field : no list of the values.
+        Object value = o.get(field);
+        if (value == null && !o.containsField(field)) {
+          return missing(expressionParser, parameter);
+        }
+        Boolean found = test(expressionParser, parameter, value);
+        return found == null ? end(parameter) : found;
+      }
+      List<Object> values = expressionParser.getEmbeddedValues(path, o);
+      if (values.isEmpty()) {
+        return missing(expressionParser, parameter);
+      }
+      for (Object value : values) {
+        Boolean found = test(expressionParser, parameter, value);
+        if (found != null) {
+          return found;
+        }
+      }
+      return end(parameter);
+    }
+
+    /**
+     * The result for a missing field.
+     */
+    private boolean missing(ExpressionParser expressionParser, Object parameter) {
+      if (operator == EQ) {
+        return parameter == null;
+      }
+      if (operator.equals(ExpressionParser.NIN)) {
+        return true;
+      }
+      if (operator.equals(ExpressionParser.NE)) {
+        return parameter != null;
+      }
+      if (operator.equals(ExpressionParser.EXISTS)) {
+        return !expressionParser.typecast(operator + " clause", parameter, Boolean.class);
+      }
+      return false;
+    }
+
+    /**
+     * The result when no value decided.
+     */
+    private boolean end(Object parameter) {
+      return operator.equals(ExpressionParser.NIN) || operator.equals(ExpressionParser.NE)
+          || operator.equals(ExpressionParser.EXISTS);
+    }
+
+    /**
+     * Check one value of the field.
+     *
+     * @return the result if this value decides it, null to look at the next values.
+     */
+    @SuppressWarnings("unchecked")
+    private Boolean test(ExpressionParser expressionParser, Object parameter, Object value) {
+      if (operator == EQ) {
+        if (value instanceof List) {
+          if ((parameter instanceof List && value.equals(parameter)) || ((List) value).contains(parameter)) {
+            return true;
+          }
+          return null;
+        }
+        if (parameter == null) {
+          return value == null;
+        }
+        return compare(expressionParser, parameter, value, false) == 0 ? true : null;
+      }
+      if (operator.equals(ExpressionParser.IN) || operator.equals(ExpressionParser.NIN)) {
+        boolean in = operator.equals(ExpressionParser.IN);
+        ExpressionParser.InValues set = (ExpressionParser.InValues) parameter;
+        boolean contains = set.contains(value);
+        if (!contains && value instanceof List) {
+          for (Object element : (List) value) {
+            if (set.contains(element)) {
+              contains = true;
+              break;
+            }
+          }
+        }
+        // $in : found in the set. $nin : not found in the set, for the first value found.
+        return contains ? in : null;
+      }
+      if (operator.equals(ExpressionParser.NE)) {
+        if (value instanceof List) {
+          for (Object element : (List) value) {
+            if (parameter == null ? element == null : parameter.equals(element)) {
+              return false;
+            }
+          }
+          return null;
+        }
+        return (parameter == null ? value == null : parameter.equals(value)) ? false : null;
+      }
+      if (operator.equals(ExpressionParser.EXISTS)) {
+        return expressionParser.typecast(operator + " clause", parameter, Boolean.class).booleanValue();
+      }
+      // $gt/$gte/$lt/$lte : one element of an array is enough.
+      if (value instanceof List) {
+        for (Object element : (List) value) {
+          if (element != null && inRange(expressionParser, parameter, element)) {
+            return true;
+          }
+        }
+        return null;
+      }
+      return value != null && inRange(expressionParser, parameter, value) ? true : null;
+    }
+
+    private boolean inRange(ExpressionParser expressionParser, Object parameter, Object value) {
+      Integer result = compare(expressionParser, parameter, value, true);
+      if (result == null) {
+        return false;
+      }
+      if (operator.equals(ExpressionParser.GT)) {
+        return result < 0;
+      }
+      if (operator.equals(ExpressionParser.GTE)) {
+        return result <= 0;
+      }
+      if (operator.equals(ExpressionParser.LT)) {
+        return result > 0;
+      }
+      return result >= 0;
+    }
+
+    /**
+     * Values of the same comparable class are compared directly, the others like the filters do.
+     */
+    @SuppressWarnings("unchecked")
+    private static Integer compare(ExpressionParser expressionParser, Object parameter, Object value, boolean comparableFilter) {
+      if (value != null && value.getClass() == parameter.getClass() && parameter instanceof Comparable
+          && !(parameter instanceof DBObject)) {
+        return ((Comparable<Object>) parameter).compareTo(value);
+      }
+      return expressionParser.compareObjects(parameter, value, comparableFilter);
+    }
+  }
+}
@@ -10,6 +10,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -128,6 +129,43 @@ public final class Util {
     }
   }
 
+  /**
+   * The shape of a query : its fields, operators and types of values, without the values.
+   */
+  public static String queryShape(DBObject query) {
+    StringBuilder shape = new StringBuilder();
+    appendShape(shape, query);
+    return shape.toString();
+  }
+
+  private static void appendShape(StringBuilder shape, Object value) {
+    if (value instanceof List) {
+      // A $in with 2 or 500 values has the same shape.
+      Set<String> elements = new LinkedHashSet<String>();
+      for (Object element : (List) value) {
+        StringBuilder elementShape = new StringBuilder();
+        appendShape(elementShape, element);
+        elements.add(elementShape.toString());
+      }
+      shape.append('[');
+      for (String element : elements) {
+        shape.append(element).append(',');
+      }
+      shape.append(']');
+    } else if (value instanceof DBObject) {
+      DBObject dbObject = (DBObject) value;
+      shape.append('{');
+      for (String key : dbObject.keySet()) {
+        shape.append(key).append(':');
+        appendShape(shape, dbObject.get(key));
+        shape.append(',');
+      }
+      shape.append('}');
+    } else {
+      shape.append(value == null ? "null" : value.getClass().getSimpleName());
+    }
+  }
+
   public static boolean isPositiveInt(String s) {
     for (int i = 0; i < s.length(); i++) {
       char c = s.charAt(i);
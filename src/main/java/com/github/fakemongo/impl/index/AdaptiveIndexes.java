@@ -0,0 +1,158 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Transient indexes of a collection, for the shapes of queries scanning the whole collection again and again : after
+ * {@code minScans} full scans of at least {@code minSize} objects, the fields of the shape are indexed.
+ * <p/>
+ * The transient indexes share a budget of entries (one per object) : the least recently used ones are dropped to make
+ * room for a new one.
+ * <p/>
+ * Thread safe.
+ */
+public final class AdaptiveIndexes {
+  // Prefix of the names of the transient indexes.
+  public static final String PREFIX = "adaptive_";
+  private static final int MAX_SHAPES = 1000;
+  private static final List<String> INDEXED_OPERATORS = Arrays.asList(ExpressionParser.GT, ExpressionParser.GTE,
+      ExpressionParser.LT, ExpressionParser.LTE, ExpressionParser.IN);
+
+  private final int minScans;
+  private final int minSize;
+  private final long maxEntries;
+  // Full scans of each shape of query.
+  private final Map<String, Integer> scans = new HashMap<String, Integer>();
+  // Entries of each transient index, the least recently used first.
+  private final Map<String, Integer> created = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+
+  /**
+   * @param minScans   full scans of a shape before indexing it.
+   * @param minSize    size of the collection from which the full scans are counted.
+   * @param maxEntries budget of the transient indexes, in entries.
+   */
+  public AdaptiveIndexes(int minScans, int minSize, long maxEntries) {
+    this.minScans = minScans;
+    this.minSize = minSize;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * A full scan of the collection for the query.
+   *
+   * @param size the size of the collection.
+   * @return the keys of the index to create for the shape of the query, or null.
+   */
+  public synchronized DBObject scanned(DBObject query, int size) {
+    DBObject keys = indexKeys(query);
+    if (keys == null || size < minSize) {
+      return null;
+    }
+    String shape = Util.queryShape(query);
+    if (scans.size() >= MAX_SHAPES && !scans.containsKey(shape)) {
+      scans.clear();
+    }
+    Integer count = scans.get(shape);
+    count = count == null ? 1 : count + 1;
+    scans.put(shape, count);
+    return count >= minScans && size <= maxEntries ? keys : null;
+  }
+
+  /**
+   * The fields of the query an index can look up : equalities, ranges and $in. Null and missing fields are not in the
+   * indexes : an equality to null or a $in with null can't use them.
+   *
+   * @return the keys of the index, or null if none.
+   */
+  static DBObject indexKeys(DBObject query) {
+    if (query == null) {
+      return null;
+    }
+    BasicDBObject keys = new BasicDBObject();
+    for (String field : query.keySet()) {
+      if (!field.startsWith("$") && isIndexed(query.get(field))) {
+        keys.append(field, 1);
+      }
+    }
+    return keys.isEmpty() ? null : keys;
+  }
+
+  private static boolean isIndexed(Object condition) {
+    if (condition == null || condition instanceof Pattern) {
+      return false;
+    }
+    if (!(condition instanceof DBObject) || condition instanceof List) {
+      return true;
+    }
+    DBObject expression = (DBObject) condition;
+    if (expression.keySet().isEmpty() || !INDEXED_OPERATORS.containsAll(expression.keySet())) {
+      return false;
+    }
+    Object in = expression.get(ExpressionParser.IN);
+    return in == null || (in instanceof Collection && !((Collection<?>) in).contains(null));
+  }
+
+  /**
+   * The names of the transient indexes to drop to make room for a new one, the least recently used first. They are
+   * forgotten.
+   *
+   * @param entries the entries of the new index.
+   */
+  public synchronized List<String> evict(int entries) {
+    long total = entries;
+    for (int indexEntries : created.values()) {
+      total += indexEntries;
+    }
+    List<String> evicted = new ArrayList<String>();
+    for (Iterator<Map.Entry<String, Integer>> iterator = created.entrySet().iterator(); total > maxEntries && iterator.hasNext(); ) {
+      Map.Entry<String, Integer> entry = iterator.next();
+      total -= entry.getValue();
+      evicted.add(entry.getKey());
+      iterator.remove();
+    }
+    return evicted;
+  }
+
+  /**
+   * A transient index was created for the shape of the query.
+   */
+  public synchronized void created(String name, DBObject query, int entries) {
+    scans.remove(Util.queryShape(query));
+    created.put(name, entries);
+  }
+
+  /**
+   * An index was used, with its current entries : a transient one becomes the most recently used.
+   */
+  public synchronized void used(String name, int entries) {
+    if (created.containsKey(name)) {
+      created.put(name, entries);
+    }
+  }
+
+  /**
+   * An index was dropped : a transient one is forgotten.
+   */
+  public synchronized void dropped(String name) {
+    created.remove(name);
+  }
+
+  /**
+   * @return the names of the transient indexes, the least recently used first.
+   */
+  public synchronized List<String> names() {
+    return new ArrayList<String>(created.keySet());
+  }
+}
@@ -0,0 +1,123 @@
+package com.github.fakemongo.impl.index;
+
+import com.mongodb.DBObject;
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bucket of a {@link BitmapIndex} : a bitmap of the slots of its objects in the {@link RecordStore}. The objects are in
+ * the order of their slots.
+ * <p/>
+ * The store gives again the slots of the removed objects : the slots stay dense, and a bitmap costs one bit per object
+ * of the collection.
+ */
+final class BitmapBucket<T extends DBObject> extends AbstractList<T> {
+  private final RecordStore records;
+  private final BitSet slots = new BitSet();
+  private int size = 0;
+
+  BitmapBucket(RecordStore records) {
+    this.records = records;
+  }
+
+  /**
+   * @return the slots of the objects, not to be modified.
+   */
+  BitSet slots() {
+    return slots;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    int slot = slots.nextSetBit(0);
+    for (int i = 0; i < index; i++) {
+      slot = slots.nextSetBit(slot + 1);
+    }
+    return (T) records.get(slot);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(T object) {
+    int slot = records.add(object);
+    if (slots.get(slot)) {
+      return false;
+    }
+    slots.set(slot);
+    size++;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object object) {
+    int slot = slotIn(object);
+    if (slot < 0) {
+      return false;
+    }
+    slots.clear(slot);
+    size--;
+    modCount++;
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object object) {
+    return slotIn(object) >= 0;
+  }
+
+  /**
+   * @return the slot of the object if in the bucket, -1 otherwise.
+   */
+  private int slotIn(Object object) {
+    int slot = records.slotOf(object);
+    if (slot < 0) {
+      // Not a stored object : look for an equal one.
+      for (int i = slots.nextSetBit(0); i >= 0; i = slots.nextSetBit(i + 1)) {
+        if (records.get(i).equals(object)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    return slots.get(slot) ? slot : -1;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private int slot = slots.nextSetBit(0);
+
+      @Override
+      public boolean hasNext() {
+        return slot >= 0;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public T next() {
+        if (slot < 0) {
+          throw new NoSuchElementException();
+        }
+        T next = (T) records.get(slot);
+        slot = slots.nextSetBit(slot + 1);
+        return next;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
@@ -0,0 +1,74 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index for a field with few different values (a status, a type...) : the bucket of each value is a bitmap of the
+ * slots of its objects in the {@link RecordStore}. An equality or a $in on the field gives the slots without reading
+ * the objects : the conditions on many such fields are intersected or joined on the slots.
+ * <p/>
+ * Otherwise the same as an {@link Index} on the field. The objects of a value are in the order of their slots, not in
+ * the order of insertion.
+ */
+public class BitmapIndex extends Index {
+
+  BitmapIndex(String name, DBObject keys, boolean sparse, DBObject partialFilterExpression, RecordStore records) {
+    super(name, keys, false, sparse, partialFilterExpression, records);
+  }
+
+  @Override
+  List<DBObject> newBucket() {
+    return new BitmapBucket<DBObject>(records);
+  }
+
+  @Override
+  public boolean canRetrieveSlots(DBObject query) {
+    return lookupValues(query.get(getFields().iterator().next())) != null;
+  }
+
+  /**
+   * The slots of the values of the equality or the $in : a union of the bitmaps of the values.
+   */
+  @Override
+  public BitSet retrieveSlots(DBObject query) {
+    lookupCount.incrementAndGet();
+    BitSet slots = new BitSet(records.capacity());
+    for (Object value : lookupValues(query.get(getFields().iterator().next()))) {
+      List<DBObject> bucket = mapValues.get(boundKey(value));
+      if (bucket != null) {
+        slots.or(((BitmapBucket<DBObject>) bucket).slots());
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * The values to look up for the condition on the field, null if the condition is not an equality or a $in. The map is
+   * sorted : values equal for the filters (5 and 5.0) are in the same bucket.
+   */
+  private static List<Object> lookupValues(Object condition) {
+    if (isBound(condition)) {
+      return Collections.singletonList(condition);
+    }
+    if (!(condition instanceof DBObject) || condition instanceof List) {
+      return null;
+    }
+    DBObject expression = (DBObject) condition;
+    if (expression.keySet().size() != 1 || !(expression.get(ExpressionParser.IN) instanceof Collection)) {
+      return null;
+    }
+    List<Object> values = new ArrayList<Object>((Collection<?>) expression.get(ExpressionParser.IN));
+    for (Object value : values) {
+      if (!isBound(value)) {
+        return null;
+      }
+    }
+    return values;
+  }
+}
@@ -6,7 +6,6 @@ import com.github.fakemongo.impl.geo.GeoUtil;
 import com.github.fakemongo.impl.geo.LatLong;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.FongoDBCollection;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -33,8 +32,8 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
   // EXPERIMENTAL SET TO FALSE : did not work well...
   private static final boolean BRUTE_FORCE = true;
 
-  GeoIndex(String name, DBObject keys, boolean unique, String geoIndex) {
-    super(name, keys, unique, new LinkedHashMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(), geoIndex);
+  GeoIndex(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, String geoIndex) {
+    super(name, keys, unique, sparse, partialFilterExpression, null, new LinkedHashMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(), geoIndex);
     //TreeMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(new GeoUtil.GeoComparator(geoIndex)), geoIndex);
   }
 
@@ -49,13 +48,29 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
     return new GeoUtil.GeoDBObject(super.getKeyFor(object), geoIndex);
   }
 
+  /**
+   * The objects of the map are wrappers, not the objects of the store.
+   */
+  @Override
+  List<GeoUtil.GeoDBObject> newBucket() {
+    return new ArrayList<GeoUtil.GeoDBObject>();
+  }
+
+  /**
+   * The wrappers are copies of the objects : an update removes the old one and adds the new one.
+   */
+  @Override
+  boolean replace(DBObject oldObject, DBObject object, Collection<GeoUtil.GeoDBObject> keys, boolean array) {
+    return false;
+  }
+
   @Override
   public GeoUtil.GeoDBObject embedded(DBObject object) {
     return new GeoUtil.GeoDBObject(object, geoIndex); // Important : do not clone, indexes share objects between them.
   }
 
   public List<DBObject> geoNear(DBObject query, List<LatLong> coordinates, int limit, boolean spherical) {
-    lookupCount++;
+    lookupCount.incrementAndGet();
 
     LOG.info("geoNear() query:{}, coordinate:{}, limit:{}, spherical:{} (mapValues size:{})", query, coordinates, limit, spherical, mapValues.size());
     // Filter values
@@ -151,7 +166,6 @@ public class GeoIndex extends IndexAbstract<GeoUtil.GeoDBObject> {
       // Test against the query filter.
       if (geoDBObject.getLatLong() != null && filterValue.apply(geoDBObject)) {
         double radians = GeoUtil.distanceInRadians(geoDBObject.getLatLong(), point, spherical);
-        geoDBObject.removeField(FongoDBCollection.FONGO_SPECIAL_ORDER_BY);
         result.add(new BasicDBObject("dis", radians).append("obj", Util.clone(geoDBObject)));
       }
     }
@@ -1,32 +1,92 @@
 package com.github.fakemongo.impl.index;
 
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.MongoException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An index for the MongoDB.
+ * <p/>
+ * The key is a 64-bit hash of the value of the hashed field : objects with the same hash share a bucket, the filters
+ * check the real value.
  */
 public class HashedIndex extends IndexAbstract<DBObject> {
   private static final Logger LOG = LoggerFactory.getLogger(HashedIndex.class);
 
-  HashedIndex(String name, DBObject keys, boolean unique, String hashed) {
-    super(name, keys, unique, new LinkedHashMap<DBObject, List<DBObject>>(), hashed);
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  HashedIndex(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, RecordStore records, String hashed) {
+    super(name, keys, unique, sparse, partialFilterExpression, records, new LinkedHashMap<DBObject, List<DBObject>>(), hashed);
     //TreeMap<GeoUtil.GeoDBObject, List<GeoUtil.GeoDBObject>>(new GeoUtil.GeoComparator(hashed)), hashed);
+    if (unique) {
+      // Different values can have the same hash.
+      throw new MongoException(16764, "Currently hashed indexes cannot guarantee uniqueness. Use a regular index.");
+    }
   }
 
   /**
-   * Create the key for the hashmap.
+   * Create the key for the hashmap : the hash of the value, a missing field being hashed like null.
    *
    * @param object
    * @return
    */
   @Override
   protected DBObject getKeyFor(DBObject object) {
-    return object;
+    List<Object> values = expressionParser.getEmbeddedValues(geoIndex, object);
+    return hashKey(values.isEmpty() ? null : values.get(0));
+  }
+
+  private DBObject hashKey(Object value) {
+    return new BasicDBObject(geoIndex, hash(value));
+  }
+
+  /**
+   * Stable 64-bit hash (FNV-1a) of a value. Like mongo, numbers are hashed as their 64-bit integer part : 2 and 2.0 are
+   * in the same bucket.
+   */
+  static long hash(Object value) {
+    String canonical;
+    if (value == null) {
+      canonical = "null";
+    } else if (value instanceof Number) {
+      canonical = "n" + ((Number) value).longValue();
+    } else if (value instanceof String) {
+      canonical = "s" + value;
+    } else if (value instanceof Date) {
+      canonical = "d" + ((Date) value).getTime();
+    } else if (value instanceof ObjectId) {
+      canonical = "o" + ((ObjectId) value).toHexString();
+    } else if (value instanceof Binary) {
+      canonical = "x" + Arrays.toString(((Binary) value).getData());
+    } else if (value instanceof byte[]) {
+      canonical = "x" + Arrays.toString((byte[]) value);
+    } else {
+      canonical = value.getClass().getName() + value;
+    }
+    long hash = FNV_OFFSET;
+    for (int i = 0; i < canonical.length(); i++) {
+      hash ^= canonical.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return hash;
   }
 
   @Override
@@ -35,10 +95,77 @@ public class HashedIndex extends IndexAbstract<DBObject> {
   }
 
   @Override
-  public List<List<Object>> addOrUpdate(DBObject object, DBObject oldObject) {
+  Entries entriesFor(DBObject object) {
     if (object.get(this.geoIndex) instanceof List) {
       throw new MongoException(16244, "Error: hashed indexes do not currently support array values");
     }
-    return super.addOrUpdate(object, oldObject);
+    return super.entriesFor(object);
+  }
+
+  /**
+   * The keys are hashes : they can't be checked by the filters.
+   */
+  @Override
+  Filter keyFilter(DBObject query) {
+    return ExpressionParser.AllFilter;
+  }
+
+  /**
+   * An equality or a $in on the hashed field is a lookup per value, other queries look at all the buckets.
+   */
+  @Override
+  Collection<DBObject> scan(DBObject query, boolean keys) {
+    List<Object> values = lookupValues(query.get(geoIndex));
+    if (values == null) {
+      return super.scan(query, keys);
+    }
+    Set<DBObject> hashKeys = new HashSet<DBObject>();
+    List<Map.Entry<DBObject, List<DBObject>>> entries = new ArrayList<Map.Entry<DBObject, List<DBObject>>>();
+    for (Object value : values) {
+      DBObject key = hashKey(value);
+      List<DBObject> objects = mapValues.get(key);
+      if (objects != null && hashKeys.add(key)) {
+        entries.add(new AbstractMap.SimpleImmutableEntry<DBObject, List<DBObject>>(key, objects));
+      }
+    }
+    LOG.debug("{} buckets for {} values of {}", entries.size(), values.size(), geoIndex);
+    return scan(query, entries, keys);
+  }
+
+  @Override
+  public double estimate(DBObject query) {
+    List<Object> values = lookupValues(query.get(geoIndex));
+    if (values == null) {
+      return size();
+    }
+    return Math.min(size(), values.size() * averageBucket());
+  }
+
+  /**
+   * The values to look up for the condition on the hashed field, null if the condition is not an equality or a $in.
+   * Documents are not looked up : their equality does not follow their string.
+   */
+  private static List<Object> lookupValues(Object condition) {
+    if (isLookup(condition)) {
+      return Collections.singletonList(condition);
+    }
+    if (!(condition instanceof DBObject) || condition instanceof List) {
+      return null;
+    }
+    DBObject expression = (DBObject) condition;
+    if (expression.keySet().size() != 1 || !(expression.get(ExpressionParser.IN) instanceof Collection)) {
+      return null;
+    }
+    List<Object> values = new ArrayList<Object>((Collection<?>) expression.get(ExpressionParser.IN));
+    for (Object value : values) {
+      if (!isLookup(value)) {
+        return null;
+      }
+    }
+    return values;
+  }
+
+  private static boolean isLookup(Object value) {
+    return value != null && isEquality(value) && !(value instanceof Collection);
   }
-}
\ No newline at end of file
+}
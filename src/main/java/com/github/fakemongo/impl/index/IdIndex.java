@@ -0,0 +1,204 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Filter;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDBCollection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+/**
+ * The primary index of a collection : its objects by the value of their _id, in the order of insertion (the natural
+ * order).
+ * <p/>
+ * The value is the key, without projection or bucket : a lookup by _id only hashes the value. Keys are equal like the
+ * values (2 and 2L are not the same key) : a lookup of a value which may have an equal of another type falls back to a
+ * scan when not found.
+ * <p/>
+ * The ranges and sorts on _id are for the sorted _id_ index of the collection.
+ */
+public class IdIndex extends IndexAbstract<DBObject> {
+  private static final String ID_KEY = FongoDBCollection.ID_KEY;
+
+  private final Map<Object, DBObject> objects = new LinkedHashMap<Object, DBObject>();
+
+  IdIndex(String name) {
+    // The map of the other indexes is not used.
+    super(name, new BasicDBObject(ID_KEY, 1), true, false, null, null, Collections.<DBObject, List<DBObject>>emptyMap(), null);
+  }
+
+  /**
+   * The key of an _id : the value itself, the content for a byte array.
+   */
+  private static Object keyOf(Object id) {
+    return id instanceof byte[] ? ByteBuffer.wrap((byte[]) id) : id;
+  }
+
+  @Override
+  public List<List<Object>> addOrUpdate(DBObject object, DBObject oldObject) {
+    if (oldObject != null) {
+      // The updated object goes last, even with the same _id.
+      remove(oldObject);
+    }
+    Object key = keyOf(object.get(ID_KEY));
+    if (objects.containsKey(key)) {
+      return duplicate(object);
+    }
+    objects.put(key, embedded(object));
+    return Collections.emptyList();
+  }
+
+  @Override
+  List<List<Object>> add(Entries entries) {
+    return addOrUpdate(entries.object, null);
+  }
+
+  @Override
+  public List<List<Object>> checkAddOrUpdate(DBObject object, DBObject oldObject) {
+    DBObject found = objects.get(keyOf(object.get(ID_KEY)));
+    if (found != null && found != oldObject && !found.equals(oldObject)) {
+      return duplicate(object);
+    }
+    return Collections.emptyList();
+  }
+
+  private List<List<Object>> duplicate(DBObject object) {
+    List<List<Object>> keys = new ArrayList<List<Object>>();
+    keys.add(expressionParser.getEmbeddedValues(ID_KEY, object));
+    return keys;
+  }
+
+  @Override
+  public void remove(DBObject object) {
+    objects.remove(keyOf(object.get(ID_KEY)));
+  }
+
+  @Override
+  public List<DBObject> get(DBObject query) {
+    lookupCount.incrementAndGet();
+    DBObject object = objects.get(keyOf(query.get(ID_KEY)));
+    return object == null ? null : Collections.singletonList(object);
+  }
+
+  /**
+   * An equality or a $in on _id is a lookup per value, other queries look at all the objects.
+   */
+  @Override
+  public Collection<DBObject> retrieveObjects(DBObject query) {
+    lookupCount.incrementAndGet();
+    List<Object> ids = lookupIds(query.get(ID_KEY));
+    if (ids == null) {
+      return scan(query, false);
+    }
+    // Without the values given many times.
+    Set<Object> keys = new LinkedHashSet<Object>();
+    for (Object id : ids) {
+      keys.add(keyOf(id));
+    }
+    Filter filter = query.keySet().size() == 1 ? ExpressionParser.AllFilter : expressionParser.buildFilter(query);
+    List<DBObject> result = new ArrayList<DBObject>(keys.size());
+    for (Object key : keys) {
+      DBObject object = objects.get(key);
+      if (object == null && !(key instanceof String) && !(key instanceof ObjectId)) {
+        // Maybe there with an equal value of another type.
+        return scan(query, false);
+      }
+      if (object != null && filter.apply(object)) {
+        result.add(object);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The values to look up for the condition on _id, null if the condition is not an equality or a $in.
+   */
+  private static List<Object> lookupIds(Object condition) {
+    if (isLookup(condition)) {
+      return Collections.singletonList(condition);
+    }
+    if (!(condition instanceof DBObject) || condition instanceof List) {
+      return null;
+    }
+    DBObject expression = (DBObject) condition;
+    if (expression.keySet().size() != 1 || !(expression.get(ExpressionParser.IN) instanceof Collection)) {
+      return null;
+    }
+    List<Object> ids = new ArrayList<Object>((Collection<?>) expression.get(ExpressionParser.IN));
+    for (Object id : ids) {
+      if (!isLookup(id)) {
+        return null;
+      }
+    }
+    return ids;
+  }
+
+  private static boolean isLookup(Object value) {
+    return value != null && !(value instanceof DBObject) && !(value instanceof List) && !(value instanceof Pattern)
+        && !(value instanceof Binary);
+  }
+
+  /**
+   * A lookup per value of an equality or a $in on _id.
+   */
+  @Override
+  public double estimate(DBObject query) {
+    Object condition = query.get(ID_KEY);
+    List<Object> ids = lookupIds(condition);
+    return ids == null ? size() : Math.min(size(), ids.size());
+  }
+
+  @Override
+  Collection<DBObject> scan(DBObject query, boolean keys) {
+    Filter filter = expressionParser.buildFilter(query);
+    List<DBObject> result = new ArrayList<DBObject>();
+    for (DBObject object : objects.values()) {
+      if (filter.apply(object)) {
+        result.add(object); // DO NOT CLONE ! need for update.
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<DBObject> values() {
+    return new ArrayList<DBObject>(objects.values());
+  }
+
+  @Override
+  public int size() {
+    return objects.size();
+  }
+
+  @Override
+  public int distinctKeys() {
+    return objects.size();
+  }
+
+  @Override
+  public double averageBucket() {
+    return objects.isEmpty() ? 0 : 1;
+  }
+
+  @Override
+  public void clear() {
+    super.clear();
+    objects.clear();
+  }
+
+  @Override
+  public DBObject embedded(DBObject object) {
+    return Index.expandObject(object); // Important : do not clone, indexes share objects between them.
+  }
+}
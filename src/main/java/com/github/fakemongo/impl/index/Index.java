@@ -5,19 +5,56 @@ import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import org.bson.types.ObjectId;
+
+import static com.github.fakemongo.impl.ExpressionParser.GT;
+import static com.github.fakemongo.impl.ExpressionParser.GTE;
+import static com.github.fakemongo.impl.ExpressionParser.IN;
+import static com.github.fakemongo.impl.ExpressionParser.LT;
+import static com.github.fakemongo.impl.ExpressionParser.LTE;
 
 /**
  * An index for the MongoDB.
  */
 public class Index extends IndexAbstract<DBObject> {
+  private static final List<String> RANGE_OPERATORS = Arrays.asList(GT, GTE, LT, LTE);
+  private static final Object MISSING = IndexKey.MISSING;
+
+  // Order of the map, when sorted.
+  private final boolean ascending;
+  // Fields of the keys, in the order of the index.
+  private final String[] fieldNames;
+  private final List<List<String>> fieldPaths = new ArrayList<List<String>>();
 
   Index(String name, DBObject keys, boolean unique) {
-    super(name, keys, unique, createMap(keys, unique), null);
+    this(name, keys, unique, false, null, null);
+  }
+
+  Index(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, RecordStore records) {
+    super(name, keys, unique, sparse, partialFilterExpression, records, createMap(keys, unique), null);
+    this.ascending = isAsc(keys);
+    this.fieldNames = getFields().toArray(new String[getFields().size()]);
+    for (String field : fieldNames) {
+      fieldPaths.add(Util.split(field));
+    }
   }
 
   private static Map<DBObject, List<DBObject>> createMap(DBObject keys, boolean unique) {
@@ -25,8 +62,484 @@ public class Index extends IndexAbstract<DBObject> {
     if (unique && keys.containsField(FongoDBCollection.ID_KEY) && keys.toMap().size() == 1) {
       return new LinkedHashMap<DBObject, List<DBObject>>();
     } else {
-      //noinspection unchecked
-      return new TreeMap<DBObject, List<DBObject>>(new ExpressionParser().buildObjectComparator(isAsc(keys)));
+      return new TreeMap<DBObject, List<DBObject>>(IndexKey.comparator(new ExpressionParser(), isAsc(keys)));
+    }
+  }
+
+  /**
+   * The map is sorted on the whole key, in the direction of the first field : the sort must be on the first fields of
+   * the index, all in the same direction. Arrays in keys are not sorted like mongo sort them.
+   */
+  @Override
+  public boolean canSort(DBObject orderby) {
+    if (!(mapValues instanceof NavigableMap) || arrayKeys > 0 || orderby.keySet().size() > getFields().size()) {
+      return false;
+    }
+    Iterator<String> fields = getFields().iterator();
+    Integer direction = null;
+    for (String sortKey : orderby.keySet()) {
+      Object sortDirection = orderby.get(sortKey);
+      if (!sortKey.equals(fields.next()) || !(sortDirection instanceof Number)) {
+        return false;
+      }
+      if (direction != null && direction != ((Number) sortDirection).intValue()) {
+        return false;
+      }
+      direction = ((Number) sortDirection).intValue();
+    }
+    return true;
+  }
+
+  /**
+   * Walk the map forward or backward. Objects with the same key stay in insertion order, like with a stable sort.
+   */
+  @Override
+  public Iterator<DBObject> sortedValues(DBObject orderby) {
+    lookupCount.incrementAndGet();
+    boolean ascendingSort = ((Number) orderby.get(orderby.keySet().iterator().next())).intValue() >= 0;
+    NavigableMap<DBObject, List<DBObject>> sortedMap = (NavigableMap<DBObject, List<DBObject>>) mapValues;
+    return objects((ascendingSort == ascending ? sortedMap : sortedMap.descendingMap()).entrySet());
+  }
+
+  /**
+   * A sort in the order of the values only walks the range of the query on the first field, if any.
+   */
+  @Override
+  public Iterator<DBObject> sortedValues(DBObject query, DBObject orderby) {
+    Object value = query == null ? null : query.get(fieldNames[0]);
+    boolean ascendingSort = ((Number) orderby.get(orderby.keySet().iterator().next())).intValue() >= 0;
+    RangeEntries range = ascendingSort && value instanceof DBObject && !(value instanceof List) ? rangeEntries((DBObject) value, true) : null;
+    if (range == null) {
+      return sortedValues(orderby);
+    }
+    lookupCount.incrementAndGet();
+    return objects(range);
+  }
+
+  /**
+   * The objects of the buckets of the entries, in their order.
+   */
+  private static Iterator<DBObject> objects(Iterable<Map.Entry<DBObject, List<DBObject>>> entries) {
+    final Iterator<Map.Entry<DBObject, List<DBObject>>> buckets = entries.iterator();
+    return new Iterator<DBObject>() {
+      private Iterator<DBObject> bucket = Collections.<DBObject>emptyList().iterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!bucket.hasNext() && buckets.hasNext()) {
+          bucket = buckets.next().getValue().iterator();
+        }
+        return bucket.hasNext();
+      }
+
+      @Override
+      public DBObject next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return bucket.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Keys hold the values of their fields, except for arrays : a key is made for each element, not for the whole array.
+   */
+  @Override
+  public boolean canCover(Collection<String> fields) {
+    if (arrayKeys > 0 || !getFields().containsAll(fields)) {
+      return false;
+    }
+    for (Object direction : getKeys().toMap().values()) {
+      if (!(direction instanceof Number)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Only look at the entries which can match the first field of the index : a $in is a lookup per value, a range or an
+   * equality is a part of the sorted map.
+   */
+  @Override
+  Collection<DBObject> scan(DBObject query, boolean keys) {
+    final String field = getFields().iterator().next();
+    Object value = query.get(field);
+    if (value instanceof DBObject && !(value instanceof List) && ((DBObject) value).get(IN) instanceof Collection) {
+      DBObject expression = (DBObject) value;
+      for (String operator : RANGE_OPERATORS) {
+        if (expression.containsField(operator)) {
+          return scanRange(query, field, value, keys);
+        }
+      }
+      List<Map.Entry<DBObject, List<DBObject>>> entries = probe((Collection<?>) expression.get(IN));
+      return entries == null ? super.scan(query, keys) : scan(query, entries, keys);
+    }
+    return scanRange(query, field, value, keys);
+  }
+
+  /**
+   * Same plans than {@link #scan(DBObject, boolean)} : a $in is one lookup per value, a range on the first field of a
+   * sorted index reads a third of it (a quarter with both bounds), an equality on the first fields reads their part of
+   * the index, fields being independent.
+   */
+  @Override
+  public double estimate(DBObject query) {
+    int size = size();
+    String field = getFields().iterator().next();
+    Object value = query.get(field);
+    if (!(value instanceof DBObject) || value instanceof List) {
+      return estimateEqualities(query);
+    }
+    DBObject expression = (DBObject) value;
+    boolean sorted = mapValues instanceof NavigableMap;
+    int bounds = 0;
+    for (String operator : RANGE_OPERATORS) {
+      if (expression.containsField(operator)) {
+        if (!sorted || !isBound(expression.get(operator))) {
+          return size;
+        }
+        bounds++;
+      }
+    }
+    if (bounds > 0) {
+      // With arrays, only one bound is used.
+      return bounds == 1 || arrayKeys > 0 ? size / 3.0 : size / 4.0;
+    }
+    if (expression.get(IN) instanceof Collection) {
+      Collection<?> in = (Collection<?>) expression.get(IN);
+      for (Object inValue : in) {
+        if (sorted ? !isBound(inValue) : !(inValue instanceof String) && !(inValue instanceof ObjectId)) {
+          return size;
+        }
+      }
+      return Math.min(size, in.size() * equalityOnFirstFields(1));
+    }
+    return size;
+  }
+
+  private double estimateEqualities(DBObject query) {
+    if (!(mapValues instanceof NavigableMap)) {
+      return super.estimate(query);
+    }
+    int equalities = 0;
+    for (String field : getFields()) {
+      if (!query.containsField(field) || !isEquality(query.get(field))) {
+        break;
+      }
+      equalities++;
+    }
+    if (equalities == 0 || !isBound(query.get(getFields().iterator().next()))) {
+      return size();
+    }
+    return equalityOnFirstFields(equalities);
+  }
+
+  private double equalityOnFirstFields(int equalities) {
+    if (equalities == getFields().size()) {
+      return isUnique() ? Math.min(1, size()) : averageBucket();
+    }
+    return averageBucket() * Math.pow(distinctKeys(), 1 - (double) equalities / getFields().size());
+  }
+
+  /**
+   * One lookup in the map for each value of a $in. The $in stays in the filters.
+   *
+   * @return the entries found, null if the values can't be looked up.
+   */
+  private List<Map.Entry<DBObject, List<DBObject>>> probe(Collection<?> in) {
+    // Sorted and without the values equal for the filters (5 and 5.0 by example).
+    Set<Object> values = new TreeSet<Object>(new Comparator<Object>() {
+      @Override
+      public int compare(Object o1, Object o2) {
+        return IndexKey.compareValues(expressionParser, o1, o2);
+      }
+    });
+    for (Object value : in) {
+      if (!isBound(value)) {
+        return null;
+      }
+      values.add(value);
+    }
+    List<Map.Entry<DBObject, List<DBObject>>> entries = new ArrayList<Map.Entry<DBObject, List<DBObject>>>();
+    if (mapValues instanceof NavigableMap) {
+      NavigableMap<DBObject, List<DBObject>> sortedMap = (NavigableMap<DBObject, List<DBObject>>) mapValues;
+      if (!ascending) {
+        sortedMap = sortedMap.descendingMap();
+      }
+      for (Object value : values) {
+        DBObject lower = boundKey(value);
+        for (Map.Entry<DBObject, List<DBObject>> entry : new RangeEntries(sortedMap.tailMap(lower, true).entrySet(), value, true, value, true)) {
+          entries.add(entry);
+        }
+      }
+    } else {
+      // Hash lookup : only for the types where equals() is the equality of the filters.
+      if (getFields().size() != 1) {
+        return null;
+      }
+      for (Object value : values) {
+        if (!(value instanceof String) && !(value instanceof ObjectId)) {
+          return null;
+        }
+      }
+      for (Object value : values) {
+        DBObject key = boundKey(value);
+        List<DBObject> objects = mapValues.get(key);
+        if (objects != null) {
+          entries.add(new AbstractMap.SimpleImmutableEntry<DBObject, List<DBObject>>(key, objects));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * $gt/$gte/$lt/$lte or an equality on the first field of the index are bounds in the sorted map : only the entries
+   * between them are looked at. The range operators are checked by the bounds, the other predicates by the filters.
+   * With arrays, the bounds can be matched by different elements : only the lower bound is used, the filters check
+   * the range.
+   */
+  private Collection<DBObject> scanRange(DBObject query, String field, Object value, boolean keys) {
+    if (!(mapValues instanceof NavigableMap)) {
+      return super.scan(query, keys);
+    }
+    if (value instanceof DBObject && !(value instanceof List)) {
+      DBObject expression = (DBObject) value;
+      RangeEntries range = rangeEntries(expression, arrayKeys == 0);
+      if (range == null) {
+        return super.scan(query, keys);
+      }
+      return scan(arrayKeys > 0 ? query : withoutRange(query, field, expression), range, keys);
+    }
+    if (isBound(value)) {
+      // Equality stays in the filters : the range is only there to skip entries.
+      return scan(query, rangeEntries(value, true, value, true), keys);
+    }
+    return super.scan(query, keys);
+  }
+
+  /**
+   * The entries in the range of $gt/$gte/$lt/$lte on the first field, null if the expression is not such a range.
+   *
+   * @param withUpper false to only use the lower bound, if any.
+   */
+  private RangeEntries rangeEntries(DBObject expression, boolean withUpper) {
+    for (String operator : RANGE_OPERATORS) {
+      if (expression.containsField(operator) && !isBound(expression.get(operator))) {
+        return null;
+      }
+    }
+    if ((expression.containsField(GT) && expression.containsField(GTE))
+        || (expression.containsField(LT) && expression.containsField(LTE))) {
+      return null;
+    }
+    boolean lowerInclusive = !expression.containsField(GT);
+    Object lower = lowerInclusive ? expression.get(GTE) : expression.get(GT);
+    boolean upperInclusive = !expression.containsField(LT);
+    Object upper = upperInclusive ? expression.get(LTE) : expression.get(LT);
+    if (lower == null && upper == null) {
+      return null;
+    }
+    if (!withUpper && lower != null) {
+      upper = null;
+    }
+    return rangeEntries(lower, lowerInclusive, upper, upperInclusive);
+  }
+
+  /**
+   * The entries from the lower bound, in the order of the values.
+   */
+  private RangeEntries rangeEntries(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+    NavigableMap<DBObject, List<DBObject>> sortedMap = (NavigableMap<DBObject, List<DBObject>>) mapValues;
+    if (!ascending) {
+      sortedMap = sortedMap.descendingMap();
+    }
+    if (lower != null) {
+      // Compound keys with the same first value are after it.
+      sortedMap = sortedMap.tailMap(boundKey(lower), true);
+    }
+    return new RangeEntries(sortedMap.entrySet(), lower, lowerInclusive, upper, upperInclusive);
+  }
+
+  /**
+   * One key for each element of the arrays, arrays of documents reached by a dotted path included : a lookup on an
+   * element finds the object. With arrays in many fields, one key for each combination of their elements.
+   */
+  @Override
+  Collection<DBObject> multikeys(DBObject object, DBObject key) {
+    List<List<Object>> combinations = Collections.<List<Object>>singletonList(Collections.<Object>emptyList());
+    for (List<String> path : fieldPaths) {
+      List<Object> values = new ArrayList<Object>();
+      for (Object value : expressionParser.getEmbeddedValues(path, object)) {
+        if (value instanceof List) {
+          values.addAll((List<?>) value);
+        } else {
+          values.add(value);
+        }
+      }
+      if (values.isEmpty()) {
+        // Missing field, or empty array.
+        values.add(MISSING);
+      }
+      List<List<Object>> next = new ArrayList<List<Object>>(combinations.size() * values.size());
+      for (List<Object> combination : combinations) {
+        for (Object value : values) {
+          List<Object> longer = new ArrayList<Object>(combination);
+          longer.add(value);
+          next.add(longer);
+        }
+      }
+      combinations = next;
+    }
+
+    Collection<DBObject> keys = mapValues instanceof SortedMap
+        ? new TreeSet<DBObject>(((SortedMap<DBObject, List<DBObject>>) mapValues).comparator())
+        : new LinkedHashSet<DBObject>();
+    for (List<Object> combination : combinations) {
+      keys.add(new IndexKey(fieldNames, combination.toArray()));
+    }
+    return keys;
+  }
+
+  /**
+   * The values of the fields, in an {@link IndexKey}. A field reached through arrays of documents has the list of its
+   * values, like an array.
+   */
+  @Override
+  DBObject getKeyFor(DBObject object) {
+    Object[] values = new Object[fieldNames.length];
+    for (int i = 0; i < values.length; i++) {
+      List<String> path = fieldPaths.get(i);
+      List<Object> found = expressionParser.getEmbeddedValues(path, object);
+      if (found.isEmpty()) {
+        values[i] = MISSING;
+      } else if (found.size() == 1 && !throughArray(path, object)) {
+        values[i] = found.get(0);
+      } else {
+        values[i] = Util.wrap(found);
+      }
+    }
+    return new IndexKey(fieldNames, values);
+  }
+
+  private static boolean throughArray(List<String> path, DBObject object) {
+    Object value = object;
+    for (int i = 0; i < path.size() - 1 && value instanceof DBObject; i++) {
+      value = ((DBObject) value).get(path.get(i));
+      if (value instanceof List && !Util.isPositiveInt(path.get(i + 1))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Key with only the first field of the index, before all the keys having this value.
+   */
+  IndexKey boundKey(Object value) {
+    Object[] values = new Object[fieldNames.length];
+    Arrays.fill(values, MISSING);
+    values[0] = value;
+    return new IndexKey(fieldNames, values);
+  }
+
+  static boolean isBound(Object value) {
+    return value instanceof Number || value instanceof String || value instanceof Date || value instanceof ObjectId || value instanceof Boolean;
+  }
+
+  private static DBObject withoutRange(DBObject query, String field, DBObject expression) {
+    DBObject others = new BasicDBObject();
+    for (String operator : expression.keySet()) {
+      if (!RANGE_OPERATORS.contains(operator)) {
+        others.put(operator, expression.get(operator));
+      }
+    }
+    DBObject residual = new BasicDBObject();
+    for (String key : query.keySet()) {
+      if (!key.equals(field)) {
+        residual.put(key, query.get(key));
+      } else if (!others.keySet().isEmpty()) {
+        residual.put(key, others);
+      }
+    }
+    return residual;
+  }
+
+  /**
+   * Entries from the start of the range, until the first field is after the upper bound.
+   */
+  private class RangeEntries implements Iterable<Map.Entry<DBObject, List<DBObject>>> {
+    private final Iterable<Map.Entry<DBObject, List<DBObject>>> entries;
+    private final Object lower;
+    private final boolean lowerInclusive;
+    private final Object upper;
+    private final boolean upperInclusive;
+
+    RangeEntries(Iterable<Map.Entry<DBObject, List<DBObject>>> entries, Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+      this.entries = entries;
+      this.lower = lower;
+      this.lowerInclusive = lowerInclusive;
+      this.upper = upper;
+      this.upperInclusive = upperInclusive;
+    }
+
+    @Override
+    public Iterator<Map.Entry<DBObject, List<DBObject>>> iterator() {
+      final Iterator<Map.Entry<DBObject, List<DBObject>>> iterator = entries.iterator();
+      return new Iterator<Map.Entry<DBObject, List<DBObject>>>() {
+        private Map.Entry<DBObject, List<DBObject>> next;
+        private boolean done;
+
+        @Override
+        public boolean hasNext() {
+          while (next == null && !done) {
+            if (!iterator.hasNext()) {
+              done = true;
+              break;
+            }
+            Map.Entry<DBObject, List<DBObject>> entry = iterator.next();
+            Object value = ((IndexKey) entry.getKey()).value(0);
+            // Same rule than the $gt/$lt filters : null and documents never match.
+            if (!(value instanceof Comparable)) {
+              continue;
+            }
+            if (upper != null) {
+              int compare = IndexKey.compareValues(expressionParser, upper, value);
+              if (compare < 0 || (compare == 0 && !upperInclusive)) {
+                done = true;
+                break;
+              }
+            }
+            if (lower != null && !lowerInclusive && IndexKey.compareValues(expressionParser, lower, value) == 0) {
+              continue;
+            }
+            next = entry;
+          }
+          return next != null;
+        }
+
+        @Override
+        public Map.Entry<DBObject, List<DBObject>> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Map.Entry<DBObject, List<DBObject>> entry = next;
+          next = null;
+          return entry;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
     }
   }
 
@@ -41,7 +554,7 @@ public class Index extends IndexAbstract<DBObject> {
    * @param object The {@link DBObject} to insert.
    * @return The expanded {@link DBObject}.
    */
-  private DBObject expandObject(final DBObject object) {
+  static DBObject expandObject(final DBObject object) {
     final List<String> keysToRemove = new ArrayList<String>();
     final List<DBObject> objectsToPut = new ArrayList<DBObject>();
 
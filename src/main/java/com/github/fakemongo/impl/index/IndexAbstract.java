@@ -3,39 +3,71 @@ package com.github.fakemongo.impl.index;
 import com.github.fakemongo.impl.ExpressionParser;
 import com.github.fakemongo.impl.Filter;
 import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 import org.bson.types.Binary;
 
 /**
  * An index for the MongoDB.
  * <p/>
- * NOT Thread Safe. The ThreadSafety must be done by the caller.
+ * NOT Thread Safe. The ThreadSafety must be done by the caller : reads can run concurrently, writes must be exclusive.
  */
 public abstract class IndexAbstract<T extends DBObject> {
   private final String name;
   private final DBObject keys;
   private final Set<String> fields;
   private final boolean unique;
+  // Only the objects with one of the fields.
+  private final boolean sparse;
+  // Only the objects matching this filter, or null.
+  private final DBObject partialFilterExpression;
+  private final Filter partialFilter;
   final String geoIndex;
   final ExpressionParser expressionParser = new ExpressionParser();
   // Contains all dbObject than field value can have
   final Map<T, List<T>> mapValues;
-  int lookupCount = 0;
+  // Slots of the objects, shared with the other indexes of the collection, or only for this index.
+  final RecordStore records;
+  private final boolean ownRecords;
+  final AtomicLong lookupCount = new AtomicLong();
+  // Number of objects in the index.
+  private int size = 0;
+  // Number of objects with an array in their key : they can have many entries, the order of the map is not the sort
+  // order for them.
+  int arrayKeys = 0;
+  // Number of entries of the objects in the map : more than the size with arrays.
+  private int entries = 0;
+  // Sum of the squared sizes of the buckets (the lists of objects with the same key).
+  private long bucketSquares = 0;
 
-  IndexAbstract(String name, DBObject keys, boolean unique, Map<T, List<T>> mapValues, String geoIndex) throws MongoException {
+  /**
+   * @param records the store of the collection, or null for an index on its own.
+   */
+  IndexAbstract(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, RecordStore records, Map<T, List<T>> mapValues, String geoIndex) throws MongoException {
     this.name = name;
     this.fields = Collections.unmodifiableSet(keys.keySet()); // Setup BEFORE keys.
     this.keys = prepareKeys(keys);
     this.unique = unique;
+    this.sparse = sparse;
+    this.partialFilterExpression = partialFilterExpression;
+    this.partialFilter = partialFilterExpression == null ? null : expressionParser.buildFilter(partialFilterExpression);
     this.mapValues = mapValues;
+    this.ownRecords = records == null;
+    this.records = ownRecords ? new RecordStore() : records;
     this.geoIndex = geoIndex;
 
     for (Object value : keys.toMap().values()) {
@@ -80,6 +112,14 @@ public abstract class IndexAbstract<T extends DBObject> {
     return unique;
   }
 
+  public boolean isSparse() {
+    return sparse;
+  }
+
+  public DBObject getPartialFilterExpression() {
+    return partialFilterExpression;
+  }
+
   public boolean isGeoIndex() {
     return geoIndex != null;
   }
@@ -97,35 +137,185 @@ public abstract class IndexAbstract<T extends DBObject> {
    * @param oldObject in update, old objet to remove from index.
    * @return keys in error if uniqueness is not respected, empty collection otherwise.
    */
+  @SuppressWarnings("unchecked")
   public List<List<Object>> addOrUpdate(DBObject object, DBObject oldObject) {
+    Entries entries = entriesFor(object);
+
     if (oldObject != null) {
-      this.remove(oldObject); // TODO : optim ?
+      if (ownRecords && records.slotOf(oldObject) >= 0) {
+        // Like the collection does with its store.
+        records.replace(oldObject, object);
+      }
+      boolean replaced = replace(oldObject, object, (Collection<T>) entries.keys, entries.array);
+      if (!replaced) {
+        removeEntries(oldObject);
+      }
+      if (ownRecords) {
+        records.forget(oldObject);
+      }
+      if (replaced) {
+        return Collections.emptyList();
+      }
     }
+    return add(entries);
+  }
 
-    T key = getKeyFor(object);
-
+  /**
+   * Add an object with its entries, from {@link #entriesFor(DBObject)}.
+   *
+   * @return keys in error if uniqueness is not respected, empty collection otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  List<List<Object>> add(Entries entries) {
+    DBObject object = entries.object;
+    Collection<T> keys = (Collection<T>) entries.keys;
     if (unique) {
       // Unique must check if he's really unique.
-      if (mapValues.containsKey(key)) {
-        return extractFields(object, key.keySet());
-      }
-      mapValues.put(key, Collections.singletonList(embedded(object))); // DO NOT CLONE !
-    } else {
-      // Extract previous values
-      List<T> values = mapValues.get(key);
-      if (values == null) {
-        // Create if absent.
-        values = new ArrayList<T>();
-        mapValues.put(key, values);
+      for (T oneKey : keys) {
+        if (mapValues.containsKey(oneKey)) {
+          return extractFields(object, oneKey.keySet());
+        }
       }
+    }
+    T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
+    for (T oneKey : keys) {
+      if (unique) {
+        mapValues.put(oneKey, Collections.singletonList(toAdd));
+        added(1);
+      } else {
+        // Extract previous values
+        List<T> values = mapValues.get(oneKey);
+        if (values == null) {
+          // Create if absent.
+          values = newBucket();
+          mapValues.put(oneKey, values);
+        }
 
-      // Add to values.
-      T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
-      values.add(toAdd);
+        // Add to values.
+        values.add(toAdd);
+        added(values.size());
+      }
+    }
+    size++;
+    if (entries.array) {
+      arrayKeys++;
     }
     return Collections.emptyList();
   }
 
+  /**
+   * The entries of an object : its keys, more than one with arrays. Doesn't change the index : can run in any thread.
+   */
+  Entries entriesFor(DBObject object) {
+    T key = getKeyFor(object);
+    boolean array = containsArray(key);
+    return new Entries(object, array ? multikeys(object, key) : Collections.singletonList(key), array);
+  }
+
+  /**
+   * Same as {@link #entriesFor(DBObject)}, null if the object must not be in the index.
+   */
+  Entries prepare(DBObject object) {
+    return canIndex(object) ? entriesFor(object) : null;
+  }
+
+  /**
+   * An object with its keys in the index.
+   */
+  static final class Entries {
+    final DBObject object;
+    final Collection<? extends DBObject> keys;
+    // True if the key of the object has an array.
+    final boolean array;
+
+    Entries(DBObject object, Collection<? extends DBObject> keys, boolean array) {
+      this.object = object;
+      this.keys = keys;
+      this.array = array;
+    }
+  }
+
+  /**
+   * Update of an object without change of its keys : its entries stay, the new object replaces the old one in them.
+   * The buckets holding slots already give the new object, its store gave it the slot of the old one.
+   *
+   * @param keys  the keys of the new object.
+   * @param array true if the key of the new object has an array.
+   * @return false if the keys changed : the old object must be removed and the new one added.
+   */
+  boolean replace(DBObject oldObject, DBObject object, Collection<T> keys, boolean array) {
+    T oldKey = getKeyFor(oldObject);
+    boolean oldArray = containsArray(oldKey);
+    if (oldArray != array) {
+      return false;
+    }
+    // Same keys in the same order, and equal values (not only for the comparator : 2 and 2.0 are not the same key).
+    Collection<T> oldKeys = oldArray ? multikeys(oldObject, oldKey) : Collections.singletonList(oldKey);
+    if (!new ArrayList<T>(oldKeys).equals(new ArrayList<T>(keys))) {
+      return false;
+    }
+    T toAdd = embedded(object); // DO NOT CLONE ! Indexes must share the same object.
+    for (T oneKey : keys) {
+      List<T> values = mapValues.get(oneKey);
+      if (values == null || (!unique && !values.contains(toAdd))) {
+        return false;
+      }
+    }
+    if (unique) {
+      for (T oneKey : keys) {
+        if (!(mapValues instanceof SortedMap)) {
+          // The order of insertion is the natural order : the updated object goes last.
+          mapValues.remove(oneKey);
+        }
+        mapValues.put(oneKey, Collections.singletonList(toAdd));
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A bucket for the objects with the same key : the slots of the objects, the objects of the map being the ones of the
+   * store.
+   */
+  List<T> newBucket() {
+    return new SlotList<T>(records);
+  }
+
+  private void added(int bucketSize) {
+    entries++;
+    // (n + 1)^2 - n^2
+    bucketSquares += 2 * bucketSize - 1;
+  }
+
+  /**
+   * The entries of an object having an array in its key. By default, only the key with the whole array.
+   *
+   * @param object the object.
+   * @param key    the key of the object, from {@link #getKeyFor(DBObject)}.
+   * @return the keys of the object in the map, without duplicates.
+   */
+  Collection<T> multikeys(DBObject object, T key) {
+    return Collections.singletonList(key);
+  }
+
+  private Collection<T> keysFor(DBObject object) {
+    T key = getKeyFor(object);
+    return containsArray(key) ? multikeys(object, key) : Collections.singletonList(key);
+  }
+
+  private static boolean containsArray(DBObject key) {
+    if (key instanceof IndexKey) {
+      return ((IndexKey) key).containsArray();
+    }
+    for (String field : key.keySet()) {
+      Object value = key.get(field);
+      if (value instanceof List || (value instanceof DBObject && containsArray((DBObject) value))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public abstract T embedded(DBObject object);
 
   /**
@@ -137,33 +327,76 @@ public abstract class IndexAbstract<T extends DBObject> {
    */
   public List<List<Object>> checkAddOrUpdate(DBObject object, DBObject oldObject) {
     if (unique) {
-      DBObject key = getKeyFor(object);
-      List<T> objects = mapValues.get(key);
-      if (objects != null && !objects.contains(oldObject)) {
-        List<List<Object>> fieldsForIndex = extractFields(object, getFields());
-        return fieldsForIndex;
+      for (T key : keysFor(object)) {
+        List<T> objects = mapValues.get(key);
+        if (objects != null && !holds(objects, oldObject)) {
+          List<List<Object>> fieldsForIndex = extractFields(object, getFields());
+          return fieldsForIndex;
+        }
       }
     }
     return Collections.emptyList();
   }
 
+  /**
+   * Return true if the bucket holds the object : the same instance, without comparing the objects, or else an equal
+   * one (geo buckets hold wrappers).
+   */
+  private static boolean holds(List<?> bucket, DBObject object) {
+    if (object == null) {
+      return false;
+    }
+    if (bucket.size() == 1 && bucket.get(0) == object) {
+      return true;
+    }
+    return bucket.contains(object);
+  }
+
   /**
    * Remove an object from the index.
    *
    * @param object to remove from the index.
    */
   public void remove(DBObject object) {
-    DBObject key = getKeyFor(object);
-    // Extract previous values
-    List<T> values = mapValues.get(key);
-    if (values != null) {
-      // Last entry ? or uniqueness ?
-      if (values.size() == 1) {
-        mapValues.remove(key);
-      } else {
-        values.remove(object);
+    if (removeEntries(object) && ownRecords) {
+      records.remove(object);
+    }
+  }
+
+  /**
+   * @return true if the object was in the index.
+   */
+  private boolean removeEntries(DBObject object) {
+    T key = getKeyFor(object);
+    boolean array = containsArray(key);
+    boolean removed = false;
+    for (T oneKey : array ? multikeys(object, key) : Collections.singletonList(key)) {
+      // Extract previous values
+      List<T> values = mapValues.get(oneKey);
+      if (values != null) {
+        // Last entry ? or uniqueness ?
+        boolean removedFromBucket = true;
+        int bucketSize = values.size();
+        if (bucketSize == 1) {
+          mapValues.remove(oneKey);
+        } else {
+          removedFromBucket = values.remove(object);
+        }
+        if (removedFromBucket) {
+          removed = true;
+          entries--;
+          // n^2 - (n - 1)^2
+          bucketSquares -= 2 * bucketSize - 1;
+        }
+      }
+    }
+    if (removed) {
+      size--;
+      if (array) {
+        arrayKeys--;
       }
     }
+    return removed;
   }
 
   /**
@@ -174,7 +407,7 @@ public abstract class IndexAbstract<T extends DBObject> {
    */
   public List<List<Object>> addAll(Iterable<DBObject> objects) {
     for (DBObject object : objects) {
-      if (canHandle(object)) {
+      if (canIndex(object)) {
         List<List<Object>> nonUnique = addOrUpdate(object, null);
         // TODO(twillouer) : must handle writeConcern.
         if (!nonUnique.isEmpty()) {
@@ -190,7 +423,7 @@ public abstract class IndexAbstract<T extends DBObject> {
     if (!unique) {
       throw new IllegalStateException("get is only for unique index");
     }
-    lookupCount++;
+    lookupCount.incrementAndGet();
 
     DBObject key = getKeyFor(query);
     return mapValues.get(key);
@@ -209,17 +442,60 @@ public abstract class IndexAbstract<T extends DBObject> {
       }
     }
 
-    lookupCount++;
+    lookupCount.incrementAndGet();
+    return scan(query, false);
+  }
+
+  /**
+   * The keys of the objects matching the query, one for each object, only if {@link #canCover(Collection)} the fields
+   * of the query : the objects are not read.
+   */
+  public Collection<T> retrieveKeys(DBObject query) {
+    lookupCount.incrementAndGet();
+    return scan(query, true);
+  }
+
+  /**
+   * Return true if the keys of the index hold these fields for all the objects of the index.
+   */
+  public boolean canCover(Collection<String> fields) {
+    return false;
+  }
+
+  /**
+   * Look for the objects matching the query in the whole map.
+   *
+   * @param keys true to get the keys of the objects instead of the objects.
+   */
+  Collection<T> scan(DBObject query, boolean keys) {
+    return scan(query, mapValues.entrySet(), keys);
+  }
 
+  /**
+   * Look for the objects matching the query in some entries of the map.
+   *
+   * @param query   the predicates not already checked by the choice of the entries.
+   * @param entries entries of the map to look into.
+   * @param keys    true to get the keys of the objects, the query being only on the fields of the index.
+   */
+  final Collection<T> scan(DBObject query, Iterable<Map.Entry<T, List<T>>> entries, boolean keys) {
     // Filter for the key.
-    Filter filterKey = expressionParser.buildFilter(query, getFields());
+    Filter filterKey = keyFilter(query);
     // Filter for the data.
     Filter filter = expressionParser.buildFilter(query);
+    // An object with an array can be in many entries.
+    Set<T> seen = arrayKeys > 0 ? Collections.newSetFromMap(new IdentityHashMap<T, Boolean>()) : null;
     List<T> result = new ArrayList<T>();
-    for (Map.Entry<T, List<T>> entry : mapValues.entrySet()) {
+    for (Map.Entry<T, List<T>> entry : entries) {
       if (filterKey.apply(entry.getKey())) {
+        if (keys) {
+          for (int i = entry.getValue().size(); i > 0; i--) {
+            result.add(entry.getKey());
+          }
+          continue;
+        }
         for (T object : entry.getValue()) {
-          if (filter.apply(object)) {
+          if (filter.apply(object) && (seen == null || seen.add(object))) {
             result.add(object); // DO NOT CLONE ! need for update.
           }
         }
@@ -228,24 +504,68 @@ public abstract class IndexAbstract<T extends DBObject> {
     return result;
   }
 
+  /**
+   * Filter for the keys of the map : a key with an element of an array can't be checked like the array.
+   */
+  Filter keyFilter(DBObject query) {
+    return arrayKeys > 0 ? ExpressionParser.AllFilter : expressionParser.buildFilter(query, getFields());
+  }
+
   public long getLookupCount() {
-    return lookupCount;
+    return lookupCount.get();
   }
 
   public int size() {
-    int size = 0;
-    if (unique) {
-      size = mapValues.size();
-    } else {
-      for (Map.Entry<T, List<T>> entry : mapValues.entrySet()) {
-        size += entry.getValue().size();
+    return size;
+  }
+
+  /**
+   * @return the number of different keys in the index.
+   */
+  public int distinctKeys() {
+    return mapValues.size();
+  }
+
+  /**
+   * Size of the bucket holding an object, on average over the entries : sum(bucket size^2) / sum(bucket size).
+   * With skewed keys, it's bigger than entries / distinctKeys, like the number of objects a lookup really gets.
+   */
+  public double averageBucket() {
+    return entries == 0 ? 0 : (double) bucketSquares / entries;
+  }
+
+  /**
+   * Estimate the number of objects read to answer the query with this index. By default, only an equality on all the
+   * fields is a lookup, other queries read the whole index.
+   *
+   * @param query a query this index {@link #canHandle(DBObject)}.
+   */
+  public double estimate(DBObject query) {
+    for (String field : fields) {
+      if (!query.containsField(field) || !isEquality(query.get(field))) {
+        return size();
       }
     }
-    return size;
+    return unique ? Math.min(1, size()) : averageBucket();
+  }
+
+  static boolean isEquality(Object value) {
+    return !(value instanceof DBObject) && !(value instanceof Pattern);
   }
 
   public List<DBObject> values() {
-    List<DBObject> values = new ArrayList<DBObject>(mapValues.size() * 10);
+    List<DBObject> values = new ArrayList<DBObject>(size);
+    if (arrayKeys > 0) {
+      Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+      for (List<T> objects : mapValues.values()) {
+        for (T object : objects) {
+          if (seen.add(object)) {
+            values.add(object);
+          }
+        }
+      }
+      return values;
+    }
     for (List<T> objects : mapValues.values()) {
       values.addAll(objects);
     }
@@ -254,6 +574,58 @@ public abstract class IndexAbstract<T extends DBObject> {
 
   public void clear() {
     mapValues.clear();
+    if (ownRecords) {
+      records.clear();
+    }
+    size = 0;
+    arrayKeys = 0;
+    entries = 0;
+    bucketSquares = 0;
+  }
+
+  /**
+   * Return true if the index can give its objects in the {@code orderby} order, with {@link #sortedValues(DBObject)}.
+   * Objects not handled by the index are not given : the caller must check the size.
+   *
+   * @param orderby the sort.
+   * @return true if the sort can be done by the index.
+   */
+  public boolean canSort(DBObject orderby) {
+    return false;
+  }
+
+  /**
+   * The objects in the {@code orderby} order, only if {@link #canSort(DBObject)}.
+   */
+  public Iterator<T> sortedValues(DBObject orderby) {
+    throw new UnsupportedOperationException("index " + name + " can't sort by " + orderby);
+  }
+
+  /**
+   * The objects in the {@code orderby} order, only if {@link #canSort(DBObject)}. The index may skip the objects which
+   * can't match the query, the caller still filters them.
+   *
+   * @param query the query, null for all the objects.
+   */
+  public Iterator<T> sortedValues(DBObject query, DBObject orderby) {
+    return sortedValues(orderby);
+  }
+
+  /**
+   * Return true if the index gives the slots of the objects matching the query, with {@link #retrieveSlots(DBObject)}.
+   *
+   * @param query the part of a query on the fields of the index.
+   */
+  public boolean canRetrieveSlots(DBObject query) {
+    return false;
+  }
+
+  /**
+   * The slots in the {@link RecordStore} of the objects matching the query, only if {@link #canRetrieveSlots(DBObject)}.
+   * The objects are not read : the result is a new set, to be combined with others.
+   */
+  public BitSet retrieveSlots(DBObject query) {
+    throw new UnsupportedOperationException("index " + name + " can't give the slots for " + query);
   }
 
   /**
@@ -277,6 +649,150 @@ public abstract class IndexAbstract<T extends DBObject> {
  //   return queryFields.containsAll(fields);
   }
 
+  /**
+   * Return true if the object must be in the index : it has the fields of the index (only one of them for a sparse
+   * index), and it matches the filter of a partial index.
+   *
+   * @param object an object of the collection, or null.
+   */
+  public boolean canIndex(DBObject object) {
+    if (object == null || (sparse ? !hasOneField(object) : !canHandle(object))) {
+      return false;
+    }
+    return partialFilter == null || partialFilter.apply(object);
+  }
+
+  private boolean hasOneField(DBObject object) {
+    for (String field : fields) {
+      if (object.containsField(field) || !expressionParser.getEmbeddedValues(field, object).isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return true if all the objects matching the query are in the index, for a query this index
+   * {@link #canHandle(DBObject)} : the query must imply the filter of a partial index.
+   * <p/>
+   * Each condition of the filter must be implied by a condition of the query on the same field : the same condition, an
+   * equality (or a $in) on values matching it, or a tighter range. $exists:true is implied by a range.
+   */
+  public boolean filterImpliedBy(DBObject query) {
+    if (partialFilterExpression == null) {
+      return true;
+    }
+    List<DBObject> queryConditions = conditions(query);
+    for (DBObject condition : conditions(partialFilterExpression)) {
+      String field = condition.keySet().iterator().next();
+      boolean implied = false;
+      for (DBObject queryCondition : queryConditions) {
+        if (queryCondition.containsField(field) && implies(field, queryCondition.get(field), condition.get(field))) {
+          implied = true;
+          break;
+        }
+      }
+      if (!implied) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The conditions on one field of a query, with the ones in a $and.
+   */
+  private static List<DBObject> conditions(DBObject query) {
+    List<DBObject> conditions = new ArrayList<DBObject>();
+    for (String key : query.keySet()) {
+      Object value = query.get(key);
+      if (ExpressionParser.AND.equals(key) && value instanceof List) {
+        for (Object part : (List) value) {
+          if (part instanceof DBObject) {
+            conditions.addAll(conditions((DBObject) part));
+          }
+        }
+      } else if (!key.startsWith("$")) {
+        conditions.add(new BasicDBObject(key, value));
+      }
+    }
+    return conditions;
+  }
+
+  private boolean implies(String field, Object queryValue, Object filterValue) {
+    if (queryValue == null ? filterValue == null : queryValue.equals(filterValue)) {
+      return true;
+    }
+    if (queryValue != null && isEquality(queryValue) && !(queryValue instanceof List)) {
+      // The only value matched by the query must match the filter.
+      return matches(field, filterValue, queryValue);
+    }
+    if (!(queryValue instanceof DBObject) || queryValue instanceof List || !(filterValue instanceof DBObject) || filterValue instanceof List) {
+      return false;
+    }
+    DBObject queryExpression = (DBObject) queryValue;
+    if (queryExpression.keySet().size() == 1 && queryExpression.get(ExpressionParser.IN) instanceof Collection) {
+      for (Object value : (Collection<?>) queryExpression.get(ExpressionParser.IN)) {
+        if (value instanceof DBObject || !implies(field, value, filterValue)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    DBObject filterExpression = (DBObject) filterValue;
+    for (String operator : filterExpression.keySet()) {
+      Object bound = filterExpression.get(operator);
+      if (queryExpression.containsField(operator) && bound.equals(queryExpression.get(operator))) {
+        continue;
+      }
+      // A range never matches a missing field.
+      if (ExpressionParser.EXISTS.equals(operator) && matches(field, new BasicDBObject(operator, bound), 0)
+          && (queryExpression.containsField(ExpressionParser.GT) || queryExpression.containsField(ExpressionParser.GTE)
+          || queryExpression.containsField(ExpressionParser.LT) || queryExpression.containsField(ExpressionParser.LTE))) {
+        continue;
+      }
+      if (!impliesBound(field, operator, bound, queryExpression)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return true if the values matching the range of the query on one side are all in the range of the filter.
+   */
+  private boolean impliesBound(String field, String operator, Object bound, DBObject queryExpression) {
+    boolean lower = ExpressionParser.GT.equals(operator) || ExpressionParser.GTE.equals(operator);
+    if (!lower && !ExpressionParser.LT.equals(operator) && !ExpressionParser.LTE.equals(operator)) {
+      return false;
+    }
+    String exclusive = lower ? ExpressionParser.GT : ExpressionParser.LT;
+    String inclusive = lower ? ExpressionParser.GTE : ExpressionParser.LTE;
+    if (queryExpression.containsField(exclusive)) {
+      return matches(field, new BasicDBObject(inclusive, bound), queryExpression.get(exclusive));
+    }
+    if (queryExpression.containsField(inclusive)) {
+      return matches(field, new BasicDBObject(operator, bound), queryExpression.get(inclusive));
+    }
+    return false;
+  }
+
+  private boolean matches(String field, Object condition, Object value) {
+    return expressionParser.buildFilter(new BasicDBObject(field, condition)).apply(boundKey(field, value));
+  }
+
+  /**
+   * Object with only this field. As a key with the first field of an index, it's before all the keys having this value.
+   */
+  static DBObject boundKey(String field, Object value) {
+    List<String> path = Util.split(field);
+    Object key = value;
+    for (int i = path.size() - 1; i >= 0; i--) {
+      key = new BasicDBObject(path.get(i), key);
+    }
+    return (DBObject) key;
+  }
+
     public boolean keyEmbeddedFieldMatch(String field, DBObject queryFields)
     {
         //if field embedded field type
@@ -291,6 +807,9 @@ public abstract class IndexAbstract<T extends DBObject> {
             count++;
             if(!searchQueryFields.containsField(fieldPart)) {
                 return false;
+            } else if (searchQueryFields.get(fieldPart) instanceof List && count < fieldParts.length) {
+                // Array of documents : one of them must have the end of the path.
+                return !expressionParser.getEmbeddedValues(field, queryFields).isEmpty();
             } else if (searchQueryFields.get(fieldPart) instanceof DBObject) {
                 searchQueryFields = (DBObject)searchQueryFields.get(fieldPart);
             }
@@ -0,0 +1,137 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.FongoException;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Build of a new index from the objects of a collection, in two steps :
+ * <ul>
+ * <li>{@link #prepare()} computes the keys of the objects, by partitions in parallel for big collections. It doesn't
+ * change the index or the objects : it can run without the lock of the collection.</li>
+ * <li>{@link #merge(RecordStore, Iterable)} adds the objects with their keys to the index, and catches up on the
+ * objects written since the objects were taken.</li>
+ * </ul>
+ */
+public final class IndexBuilder {
+  private static final Logger LOG = LoggerFactory.getLogger(IndexBuilder.class);
+
+  // Objects in a partition : smaller collections are prepared in the calling thread.
+  static final int PARTITION_SIZE = 8192;
+
+  private final IndexAbstract<?> index;
+  private final List<DBObject> objects;
+  // Threads computing the partitions.
+  private final ExecutorService executor;
+  // Entries of each object, null if not in the index.
+  private IndexAbstract.Entries[] entries;
+
+  /**
+   * @param index    the new index, not used yet.
+   * @param objects  the objects of the collection, not changed while the keys are computed.
+   * @param executor the threads computing the partitions of big collections.
+   */
+  public IndexBuilder(IndexAbstract<?> index, List<DBObject> objects, ExecutorService executor) {
+    this.index = index;
+    this.objects = objects;
+    this.executor = executor;
+  }
+
+  public IndexAbstract<?> getIndex() {
+    return index;
+  }
+
+  /**
+   * Compute the keys of the objects.
+   */
+  public void prepare() {
+    final int size = objects.size();
+    entries = new IndexAbstract.Entries[size];
+    if (size < 2 * PARTITION_SIZE) {
+      prepare(0, size);
+      return;
+    }
+    List<Future<?>> partitions = new ArrayList<Future<?>>();
+    for (int start = 0; start < size; start += PARTITION_SIZE) {
+      final int from = start;
+      partitions.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          prepare(from, Math.min(size, from + PARTITION_SIZE));
+        }
+      }));
+    }
+    LOG.debug("index {} : keys of {} objects computed in {} partitions", index.getName(), size, partitions.size());
+    for (Future<?> partition : partitions) {
+      try {
+        partition.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new FongoException("interrupted while building index " + index.getName());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new FongoException("can't build index " + index.getName() + " : " + e.getCause());
+      }
+    }
+  }
+
+  private void prepare(int from, int to) {
+    for (int i = from; i < to; i++) {
+      entries[i] = index.prepare(objects.get(i));
+    }
+  }
+
+  /**
+   * Add the objects to the index, in their order, with the keys from {@link #prepare()}. The objects removed or
+   * replaced since are skipped, the objects written since are added.
+   *
+   * @param records the store of the collection : the objects still in the collection.
+   * @param current the objects of the collection now, null if they didn't change since {@link #prepare()}.
+   * @return keys in error if uniqueness is not respected, empty collection otherwise.
+   */
+  public List<List<Object>> merge(RecordStore records, Iterable<DBObject> current) {
+    Set<DBObject> merged = Collections.newSetFromMap(new IdentityHashMap<DBObject, Boolean>());
+    for (int i = 0; i < entries.length; i++) {
+      DBObject object = objects.get(i);
+      if (current != null) {
+        if (records.slotOf(object) < 0) {
+          continue;
+        }
+        merged.add(object);
+      }
+      if (entries[i] != null) {
+        List<List<Object>> nonUnique = index.add(entries[i]);
+        if (!nonUnique.isEmpty()) {
+          return nonUnique;
+        }
+      }
+    }
+    if (current != null) {
+      int missed = 0;
+      for (DBObject object : current) {
+        if (!merged.contains(object)) {
+          missed++;
+          if (index.canIndex(object)) {
+            List<List<Object>> nonUnique = index.addOrUpdate(object, null);
+            if (!nonUnique.isEmpty()) {
+              return nonUnique;
+            }
+          }
+        }
+      }
+      LOG.debug("index {} : {} objects written while building", index.getName(), missed);
+    }
+    return Collections.emptyList();
+  }
+}
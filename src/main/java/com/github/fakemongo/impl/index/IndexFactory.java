@@ -12,16 +12,44 @@ public final class IndexFactory {
   private IndexFactory() {
   }
 
+  /**
+   * The primary index of a collection, on _id.
+   */
+  public static IndexAbstract createPrimary(String name) {
+    return new IdIndex(name);
+  }
+
   public static IndexAbstract create(String name, DBObject keys, boolean unique) throws MongoException {
+    return create(name, keys, unique, false, null, null);
+  }
+
+  /**
+   * @param sparse                  true to hold only the objects having one of the fields.
+   * @param partialFilterExpression to hold only the objects matching it, or null.
+   * @param records                 the store of the collection, shared by its indexes, or null.
+   */
+  public static IndexAbstract create(String name, DBObject keys, boolean unique, boolean sparse, DBObject partialFilterExpression, RecordStore records) throws MongoException {
+    if (sparse && partialFilterExpression != null) {
+      throw new MongoException(67, "cannot mix \"partialFilterExpression\" and \"sparse\" options");
+    }
     String geoIndex = getGeoKey(keys);
     if (geoIndex != null) {
-      return new GeoIndex(name, keys, unique, geoIndex);
+      return new GeoIndex(name, keys, unique, sparse, partialFilterExpression, geoIndex);
     } else {
+      if (isBitmap(keys)) {
+        if (keys.keySet().size() != 1) {
+          throw new MongoException(67, "bitmap indexes must be on a single field");
+        }
+        if (unique) {
+          throw new MongoException(67, "bitmap indexes cannot be unique");
+        }
+        return new BitmapIndex(name, keys, sparse, partialFilterExpression, records);
+      }
       String hashed = getHashedKey(keys);
       if (hashed != null) {
-        return new HashedIndex(name, keys, unique, hashed);
+        return new HashedIndex(name, keys, unique, sparse, partialFilterExpression, records, hashed);
       }
-      return new Index(name, keys, unique);
+      return new Index(name, keys, unique, sparse, partialFilterExpression, records);
     }
   }
 
@@ -39,6 +67,15 @@ public final class IndexFactory {
     return hashed;
   }
 
+  private static boolean isBitmap(DBObject keys) {
+    for (Object value : keys.toMap().values()) {
+      if ("bitmap".equals(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private static String getGeoKey(DBObject keys) {
     boolean first = true;
     String geo = null;
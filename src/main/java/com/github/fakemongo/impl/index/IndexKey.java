@@ -0,0 +1,240 @@
+package com.github.fakemongo.impl.index;
+
+import com.github.fakemongo.impl.ExpressionParser;
+import com.github.fakemongo.impl.Util;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BSONObject;
+
+/**
+ * Key of an {@link Index} : the values of the fields of the index, in the order of the index. Lighter than the
+ * projection of the object on these fields, and its hash is computed only once.
+ * <p/>
+ * Reads like this projection (embedded fields as embedded documents), to be checked by the filters or given as the
+ * result of a covered query. It can't be modified.
+ */
+final class IndexKey implements DBObject {
+  // Value of a field absent from the object.
+  static final Object MISSING = new Object();
+
+  private final String[] fields;
+  private final Object[] values;
+  private int hash;
+
+  /**
+   * @param fields the fields of the index, shared by all its keys.
+   * @param values the value of each field, or {@link #MISSING}.
+   */
+  IndexKey(String[] fields, Object[] values) {
+    this.fields = fields;
+    this.values = values;
+  }
+
+  /**
+   * @return the value of the n-th field of the index, or {@link #MISSING}.
+   */
+  Object value(int index) {
+    return values[index];
+  }
+
+  boolean containsArray() {
+    for (Object value : values) {
+      if (value instanceof List) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Object get(String key) {
+    BasicDBObject embedded = null;
+    for (int i = 0; i < fields.length; i++) {
+      if (values[i] == MISSING) {
+        continue;
+      }
+      if (fields[i].equals(key)) {
+        return values[i];
+      }
+      if (fields[i].startsWith(key) && fields[i].length() > key.length() && fields[i].charAt(key.length()) == '.') {
+        if (embedded == null) {
+          embedded = new BasicDBObject();
+        }
+        putPath(embedded, Util.split(fields[i].substring(key.length() + 1)), values[i]);
+      }
+    }
+    return embedded;
+  }
+
+  private static void putPath(DBObject object, List<String> path, Object value) {
+    DBObject parent = object;
+    for (String name : path.subList(0, path.size() - 1)) {
+      Object child = parent.get(name);
+      if (!(child instanceof DBObject)) {
+        child = new BasicDBObject();
+        parent.put(name, child);
+      }
+      parent = (DBObject) child;
+    }
+    parent.put(path.get(path.size() - 1), value);
+  }
+
+  @Override
+  public boolean containsField(String key) {
+    for (int i = 0; i < fields.length; i++) {
+      if (values[i] != MISSING && (fields[i].equals(key) || fields[i].startsWith(key + "."))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  @Deprecated
+  public boolean containsKey(String key) {
+    return containsField(key);
+  }
+
+  @Override
+  public Set<String> keySet() {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (int i = 0; i < fields.length; i++) {
+      if (values[i] != MISSING) {
+        int dot = fields[i].indexOf('.');
+        keys.add(dot < 0 ? fields[i] : fields[i].substring(0, dot));
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  public Map toMap() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for (String key : keySet()) {
+      map.put(key, get(key));
+    }
+    return map;
+  }
+
+  @Override
+  public Object put(String key, Object v) {
+    throw new UnsupportedOperationException("index keys can't be modified");
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    throw new UnsupportedOperationException("index keys can't be modified");
+  }
+
+  @Override
+  public void putAll(Map m) {
+    throw new UnsupportedOperationException("index keys can't be modified");
+  }
+
+  @Override
+  public Object removeField(String key) {
+    throw new UnsupportedOperationException("index keys can't be modified");
+  }
+
+  @Override
+  public void markAsPartialObject() {
+    throw new UnsupportedOperationException("index keys can't be modified");
+  }
+
+  @Override
+  public boolean isPartialObject() {
+    return false;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || (o instanceof IndexKey && Arrays.deepEquals(values, ((IndexKey) o).values));
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      h = Arrays.deepHashCode(values);
+      hash = h;
+    }
+    return h;
+  }
+
+  @Override
+  public String toString() {
+    return new BasicDBObject(toMap()).toString();
+  }
+
+  /**
+   * Compare the keys field by field, a missing field first.
+   */
+  static Comparator<DBObject> comparator(final ExpressionParser expressionParser, boolean asc) {
+    final int direction = asc ? 1 : -1;
+    return new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        Object[] values1 = ((IndexKey) o1).values;
+        Object[] values2 = ((IndexKey) o2).values;
+        for (int i = 0; i < values1.length; i++) {
+          int compare = compareValues(expressionParser, values1[i], values2[i]);
+          if (compare != 0) {
+            return direction * compare;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+
+  /**
+   * Compare two values like the filters do, {@link #MISSING} first. Values of the same class and numbers are compared
+   * directly : integers as longs, other numbers as doubles unless they are equal as doubles. The others go through
+   * {@link ExpressionParser#compareObjects(Object, Object)}.
+   */
+  @SuppressWarnings("unchecked")
+  static int compareValues(ExpressionParser expressionParser, Object value1, Object value2) {
+    if (value1 == MISSING || value2 == MISSING) {
+      return value1 == value2 ? 0 : value1 == MISSING ? -1 : 1;
+    }
+    if (value1 == null || value2 == null) {
+      return expressionParser.compareObjects(value1, value2);
+    }
+    if (value1.getClass() == value2.getClass() && value1 instanceof Comparable
+        && !(value1 instanceof DBObject) && !(value1 instanceof List)) {
+      return ((Comparable<Object>) value1).compareTo(value2);
+    }
+    if (isIntegral(value1) && isIntegral(value2)) {
+      long long1 = ((Number) value1).longValue();
+      long long2 = ((Number) value2).longValue();
+      return long1 < long2 ? -1 : (long1 == long2 ? 0 : 1);
+    }
+    if ((isIntegral(value1) || isFloating(value1)) && (isIntegral(value2) || isFloating(value2))) {
+      double double1 = ((Number) value1).doubleValue();
+      double double2 = ((Number) value2).doubleValue();
+      if (double1 < double2) {
+        return -1;
+      }
+      if (double1 > double2) {
+        return 1;
+      }
+      // Equal as doubles : maybe not for big longs.
+    }
+    return expressionParser.compareObjects(value1, value2);
+  }
+
+  private static boolean isIntegral(Object value) {
+    return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+  }
+
+  private static boolean isFloating(Object value) {
+    return value instanceof Double || value instanceof Float;
+  }
+}
@@ -0,0 +1,127 @@
+package com.github.fakemongo.impl.index;
+
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The objects of a collection, each one in an int slot : the indexes of the collection hold the slots of their objects,
+ * and sets of objects found by different indexes are sets of slots.
+ * <p/>
+ * An object is known by its identity (indexes share the objects). Its slot doesn't change while it's in the store, and
+ * is given to an other object once removed.
+ * <p/>
+ * NOT Thread Safe, like the indexes.
+ */
+public final class RecordStore {
+  private final Map<DBObject, Integer> slots = new IdentityHashMap<DBObject, Integer>();
+  private DBObject[] records = new DBObject[16];
+  // Slots of the removed objects, to be given again.
+  private int[] free = new int[16];
+  private int freeCount = 0;
+  // Slots given so far, free ones included.
+  private int used = 0;
+
+  /**
+   * @return the slot of the object, a new one if it was not in the store.
+   */
+  public int add(DBObject record) {
+    Integer slot = slots.get(record);
+    if (slot != null) {
+      return slot;
+    }
+    int newSlot = freeCount > 0 ? free[--freeCount] : used++;
+    if (newSlot == records.length) {
+      records = Arrays.copyOf(records, newSlot * 2);
+    }
+    records[newSlot] = record;
+    slots.put(record, newSlot);
+    return newSlot;
+  }
+
+  /**
+   * The new version of an object takes its slot, the buckets holding the slot now give the new version. The old version
+   * keeps the slot until {@link #forget(DBObject)} : the indexes still find it while they are updated.
+   *
+   * @return the slot of the new version, a new one if the old version was not in the store.
+   */
+  public int replace(DBObject old, DBObject record) {
+    Integer slot = slots.get(old);
+    if (slot == null) {
+      return add(record);
+    }
+    records[slot] = record;
+    slots.put(record, slot);
+    return slot;
+  }
+
+  /**
+   * Forget an old version of an object, its slot staying to the new version.
+   */
+  public void forget(DBObject old) {
+    Integer slot = slots.get(old);
+    if (slot != null && records[slot] != old) {
+      slots.remove(old);
+    }
+  }
+
+  /**
+   * Free the slot of the object, if in the store.
+   */
+  public void remove(DBObject record) {
+    Integer slot = slots.remove(record);
+    if (slot != null) {
+      records[slot] = null;
+      if (freeCount == free.length) {
+        free = Arrays.copyOf(free, freeCount * 2);
+      }
+      free[freeCount++] = slot;
+    }
+  }
+
+  /**
+   * @return the slot of this very object, -1 if not in the store.
+   */
+  public int slotOf(Object record) {
+    Integer slot = slots.get(record);
+    return slot == null ? -1 : slot;
+  }
+
+  public DBObject get(int slot) {
+    return records[slot];
+  }
+
+  /**
+   * @return the slots of the objects in the store.
+   */
+  public BitSet slotsOf(Iterable<?> objects) {
+    BitSet result = new BitSet(used);
+    for (Object object : objects) {
+      int slot = slotOf(object);
+      if (slot >= 0) {
+        result.set(slot);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of slots given so far : all the slots are below.
+   */
+  public int capacity() {
+    return used;
+  }
+
+  public int size() {
+    return slots.size();
+  }
+
+  public void clear() {
+    slots.clear();
+    Arrays.fill(records, 0, used, null);
+    freeCount = 0;
+    used = 0;
+  }
+}
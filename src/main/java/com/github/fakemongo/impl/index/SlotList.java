@@ -0,0 +1,318 @@
+package com.github.fakemongo.impl.index;
+
+import com.mongodb.DBObject;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Bucket of an index : the slots of its objects in the {@link RecordStore}, in insertion order. An object is found by
+ * its slot, not by comparing the objects.
+ * <p/>
+ * A removed slot leaves a hole, the holes are dropped when they are more than the slots, or before a positional access
+ * when there are holes after the first slot. Big buckets know the cell of each slot : finding or removing an object
+ * doesn't read the bucket.
+ */
+final class SlotList<T extends DBObject> extends AbstractList<T> {
+  // Size from which the cells of the slots are kept.
+  static final int POSITIONS_THRESHOLD = 16;
+  private static final int HOLE = -1;
+
+  private final RecordStore records;
+  private int[] slots = new int[2];
+  // Cells used in slots, holes included.
+  private int length = 0;
+  private int size = 0;
+  // Cell of the first slot, the cells before are holes.
+  private int first = 0;
+  // Incremented when the cells of the slots move.
+  private int compactions = 0;
+  // Cell of each slot, only for big buckets.
+  private Positions positions;
+
+  SlotList(RecordStore records) {
+    this.records = records;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    return (T) records.get(slots[cell(index)]);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(T object) {
+    if (length == slots.length) {
+      if (length - size >= length / 4) {
+        compact();
+      }
+      if (length == slots.length) {
+        slots = Arrays.copyOf(slots, length * 2);
+      }
+    }
+    int slot = records.add(object);
+    slots[length] = slot;
+    if (positions != null) {
+      positions.put(slot, length);
+    }
+    length++;
+    size++;
+    modCount++;
+    if (positions == null && size > POSITIONS_THRESHOLD) {
+      indexPositions();
+    }
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T remove(int index) {
+    int cell = cell(index);
+    T removed = (T) records.get(slots[cell]);
+    removeCell(cell);
+    return removed;
+  }
+
+  @Override
+  public boolean remove(Object object) {
+    int cell = cellOf(object);
+    if (cell < 0) {
+      return false;
+    }
+    removeCell(cell);
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object object) {
+    return cellOf(object) >= 0;
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new Iterator<T>() {
+      private int cell = nextCell(first);
+      // Slots returned.
+      private int index = 0;
+      private int expectedCompactions = compactions;
+
+      @Override
+      public boolean hasNext() {
+        return index < size;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public T next() {
+        if (index >= size) {
+          throw new NoSuchElementException();
+        }
+        if (expectedCompactions != compactions) {
+          // A positional access dropped the holes.
+          cell = cell(index);
+          expectedCompactions = compactions;
+        }
+        T next = (T) records.get(slots[cell]);
+        cell = nextCell(cell + 1);
+        index++;
+        return next;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private int nextCell(int from) {
+    int cell = from;
+    while (cell < length && slots[cell] == HOLE) {
+      cell++;
+    }
+    return cell;
+  }
+
+  /**
+   * @return the cell of the n-th slot.
+   */
+  private int cell(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+    if (length - first != size) {
+      // Holes after the first slot.
+      compact();
+    }
+    return first + index;
+  }
+
+  /**
+   * @return the cell of the object, -1 if not in the bucket.
+   */
+  private int cellOf(Object object) {
+    int slot = records.slotOf(object);
+    if (slot < 0) {
+      // Not a stored object : look for an equal one.
+      for (int cell = nextCell(first); cell < length; cell = nextCell(cell + 1)) {
+        if (records.get(slots[cell]).equals(object)) {
+          return cell;
+        }
+      }
+      return -1;
+    }
+    if (positions != null) {
+      return positions.get(slot);
+    }
+    for (int cell = first; cell < length; cell++) {
+      if (slots[cell] == slot) {
+        return cell;
+      }
+    }
+    return -1;
+  }
+
+  private void removeCell(int cell) {
+    if (positions != null) {
+      positions.remove(slots[cell]);
+    }
+    slots[cell] = HOLE;
+    size--;
+    modCount++;
+    if (cell == first) {
+      first = nextCell(first + 1);
+    }
+    if (length - size > size) {
+      compact();
+    }
+  }
+
+  /**
+   * Drop the holes, the slots keeping their order.
+   */
+  private void compact() {
+    if (length == size) {
+      return;
+    }
+    int to = 0;
+    for (int cell = 0; cell < length; cell++) {
+      if (slots[cell] != HOLE) {
+        slots[to++] = slots[cell];
+      }
+    }
+    length = to;
+    first = 0;
+    compactions++;
+    if (positions != null) {
+      indexPositions();
+    }
+  }
+
+  private void indexPositions() {
+    positions = new Positions(size);
+    for (int cell = 0; cell < length; cell++) {
+      if (slots[cell] != HOLE) {
+        positions.put(slots[cell], cell);
+      }
+    }
+  }
+
+  /**
+   * Cells of the slots : open addressing on the ints, no boxing. The slots are never negative.
+   */
+  private static final class Positions {
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private int[] cells;
+    private int mask;
+    private int size = 0;
+
+    Positions(int expected) {
+      int capacity = 4;
+      while (capacity < expected * 2) {
+        capacity <<= 1;
+      }
+      keys = new int[capacity];
+      Arrays.fill(keys, FREE);
+      cells = new int[capacity];
+      mask = capacity - 1;
+    }
+
+    /**
+     * @return the cell of the slot, -1 if not there.
+     */
+    int get(int slot) {
+      for (int i = hash(slot); keys[i] != FREE; i = (i + 1) & mask) {
+        if (keys[i] == slot) {
+          return cells[i];
+        }
+      }
+      return -1;
+    }
+
+    void put(int slot, int cell) {
+      int i = hash(slot);
+      while (keys[i] != FREE) {
+        if (keys[i] == slot) {
+          cells[i] = cell;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = slot;
+      cells[i] = cell;
+      if (++size * 2 > keys.length) {
+        grow();
+      }
+    }
+
+    void remove(int slot) {
+      int i = hash(slot);
+      while (keys[i] != slot) {
+        if (keys[i] == FREE) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      size--;
+      // Shift back the next keys of the run, no tombstone.
+      for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+        int home = hash(keys[j]);
+        if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+          continue;
+        }
+        keys[i] = keys[j];
+        cells[i] = cells[j];
+        i = j;
+      }
+      keys[i] = FREE;
+    }
+
+    private void grow() {
+      int[] oldKeys = keys;
+      int[] oldCells = cells;
+      keys = new int[oldKeys.length * 2];
+      Arrays.fill(keys, FREE);
+      cells = new int[keys.length];
+      mask = keys.length - 1;
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++) {
+        if (oldKeys[i] != FREE) {
+          put(oldKeys[i], oldCells[i]);
+        }
+      }
+    }
+
+    private int hash(int slot) {
+      int h = slot * 0x9E3779B9;
+      return (h ^ (h >>> 16)) & mask;
+    }
+  }
+}
@@ -10,6 +10,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -107,6 +108,13 @@ public class FongoDB extends DB {
     return fongo.getWriteConcern();
   }
 
+  /**
+   * @return the threads computing the keys of new indexes, shared by the databases of the same {@link Fongo}.
+   */
+  ExecutorService getIndexBuilders() {
+    return fongo.getIndexBuilders();
+  }
+
   @Override
   public ReadPreference getReadPreference() {
     return ReadPreference.primaryPreferred();
@@ -8,23 +8,34 @@ import com.github.fakemongo.impl.UpdateEngine;
 import com.github.fakemongo.impl.Util;
 import com.github.fakemongo.impl.geo.GeoUtil;
 import com.github.fakemongo.impl.geo.LatLong;
+import com.github.fakemongo.impl.index.AdaptiveIndexes;
 import com.github.fakemongo.impl.index.GeoIndex;
 import com.github.fakemongo.impl.index.IndexAbstract;
+import com.github.fakemongo.impl.index.IndexBuilder;
 import com.github.fakemongo.impl.index.IndexFactory;
+import com.github.fakemongo.impl.index.RecordStore;
 import com.github.fakemongo.impl.text.TextSearch;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.bson.BSON;
 import org.bson.io.BasicOutputBuffer;
 import org.bson.io.OutputBuffer;
@@ -32,6 +43,7 @@ import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 import static org.bson.util.Assertions.isTrue;
 import org.objenesis.ObjenesisStd;
+import org.objenesis.instantiator.ObjectInstantiator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
@@ -39,6 +51,11 @@ import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 /**
  * fongo override of com.mongodb.DBCollection
  * you shouldn't need to use this class directly
+ * <p/>
+ * Writes (insert, update, remove, index creation/drop) take the write lock. Reads (find, count, distinct) work on a
+ * snapshot : the read lock is only held to retrieve the objects from an index, a scan of the whole collection uses
+ * the version published after the last write without any lock. Stored objects are never modified (updates replace
+ * them), so a snapshot can be filtered, sorted and cloned while writers go on.
  *
  * @author jon
  */
@@ -47,17 +64,35 @@ public class FongoDBCollection extends DBCollection {
 
   public static final String ID_KEY = "_id";
 
-  public static final String FONGO_SPECIAL_ORDER_BY = "$$$$$FONGO_ORDER_BY$$$$$";
-
   private static final String ID_NAME_INDEX = "_id_";
+  // Same as the first batch of mongo.
+  private static final int DEFAULT_BATCH_SIZE = 101;
+  private static final int MAX_QUERY_PLANS = 1000;
+  // Intersect two indexes only when the best one reads at least this number of objects,
+  private static final int MIN_INTERSECTION = 32;
+  // and when both read at most this part of the collection.
+  private static final double MAX_INTERSECTION_SELECTIVITY = 0.1;
+  // Getting an instantiator generates a class : do it once, not for each find.
+  private static final ObjectInstantiator<QueryResultIterator> QUERY_RESULT_ITERATOR_INSTANTIATOR = new ObjenesisStd().getInstantiatorOf(QueryResultIterator.class);
+  private static final Field QUERY_RESULT_ITERATOR_CUR = queryResultIteratorCur();
   private final FongoDB fongoDb;
   private final ExpressionParser expressionParser;
   private final UpdateEngine updateEngine;
   private final boolean nonIdCollection;
   private final ExpressionParser.ObjectComparator objectComparator;
   // Fields/Index
-  private final List<IndexAbstract> indexes = new ArrayList<IndexAbstract>();
+  private final List<IndexAbstract> indexes = new CopyOnWriteArrayList<IndexAbstract>();
   private final IndexAbstract _idIndex;
+  // Slot of each stored object, shared by the indexes.
+  private final RecordStore records = new RecordStore();
+  // Readers share the lock, writers are exclusive.
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // Index chosen for each shape of query, replaced when the indexes change.
+  private volatile Map<String, QueryPlan> queryPlans = newQueryPlans();
+  // Immutable version of the stored objects, null when a write happened since the last full scan.
+  private volatile List<DBObject> objectsVersion;
+  // Transient indexes for the repeated full scans, null unless enabled.
+  private volatile AdaptiveIndexes adaptiveIndexes;
 
   public FongoDBCollection(FongoDB db, String name) {
     super(db, name);
@@ -66,7 +101,7 @@ public class FongoDBCollection extends DBCollection {
     this.expressionParser = new ExpressionParser();
     this.updateEngine = new UpdateEngine();
     this.objectComparator = expressionParser.buildObjectComparator(true);
-    this._idIndex = IndexFactory.create(ID_KEY, new BasicDBObject(ID_KEY, 1), true);
+    this._idIndex = IndexFactory.createPrimary(ID_KEY);
     this.indexes.add(_idIndex);
     if (!this.nonIdCollection) {
       this.createIndex(new BasicDBObject(ID_KEY, 1), new BasicDBObject("name", ID_NAME_INDEX));
@@ -87,7 +122,7 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized WriteResult insert(DBObject[] arr, WriteConcern concern, DBEncoder encoder) throws MongoException {
+  public WriteResult insert(DBObject[] arr, WriteConcern concern, DBEncoder encoder) throws MongoException {
     return insert(Arrays.asList(arr), concern, encoder);
   }
 
@@ -104,21 +139,26 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized WriteResult insert(List<DBObject> toInsert, WriteConcern concern, DBEncoder encoder) {
-    for (DBObject obj : toInsert) {
-      DBObject cloned = filterLists(Util.cloneIdFirst(encodeDecode(obj, encoder)));
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("insert: " + cloned);
-      }
-      ObjectId id = putIdIfNotPresent(cloned);
-      // Save the id field in the caller.
-      if (!(obj instanceof LazyDBObject) && obj.get(ID_KEY) == null) {
-        obj.put(ID_KEY, Util.clone(id));
-      }
+  public WriteResult insert(List<DBObject> toInsert, WriteConcern concern, DBEncoder encoder) {
+    lock.writeLock().lock();
+    try {
+      for (DBObject obj : toInsert) {
+        DBObject cloned = filterLists(Util.cloneIdFirst(encodeDecode(obj, encoder)));
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("insert: " + cloned);
+        }
+        ObjectId id = putIdIfNotPresent(cloned);
+        // Save the id field in the caller.
+        if (!(obj instanceof LazyDBObject) && obj.get(ID_KEY) == null) {
+          obj.put(ID_KEY, Util.clone(id));
+        }
 
-      putSizeCheck(cloned, concern);
+        putSizeCheck(cloned, concern);
+      }
+      return new WriteResult(insertResult(toInsert.size()), concern);
+    } finally {
+      unlockWrite();
     }
-    return new WriteResult(insertResult(toInsert.size()), concern);
   }
 
   boolean enforceDuplicates(WriteConcern concern) {
@@ -143,11 +183,16 @@ public class FongoDBCollection extends DBCollection {
   }
 
   public void putSizeCheck(DBObject obj, WriteConcern concern) {
-    if (_idIndex.size() > 100000) {
-      throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
-    }
+    lock.writeLock().lock();
+    try {
+      if (_idIndex.size() > 100000) {
+        throw new FongoException("Whoa, hold up there.  Fongo's designed for lightweight testing.  100,000 items per collection max");
+      }
 
-    addToIndexes(obj, null, concern);
+      addToIndexes(obj, null, concern);
+    } finally {
+      unlockWrite();
+    }
   }
 
   public DBObject filterLists(DBObject dbo) {
@@ -199,60 +244,64 @@ public class FongoDBCollection extends DBCollection {
 
 
   @Override
-  public synchronized WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern,
-                                         DBEncoder encoder) throws MongoException {
-
-    q = filterLists(q);
-    o = filterLists(o);
-
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("update(" + q + ", " + o + ", " + upsert + ", " + multi + ")");
-    }
-
-    if (o.containsField(ID_KEY) && q.containsField(ID_KEY) && objectComparator.compare(o.get(ID_KEY), q.get(ID_KEY)) != 0) {
-      LOG.warn("can not change _id of a document query={}, document={}", q, o);
-      throw new WriteConcernException(fongoDb.notOkErrorResult(16836, "can not change _id of a document " + ID_KEY));
-    }
+  public WriteResult update(DBObject q, DBObject o, boolean upsert, boolean multi, WriteConcern concern,
+                            DBEncoder encoder) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      q = filterLists(q);
+      o = filterLists(o);
 
-    int updatedDocuments = 0;
-    boolean idOnlyUpdate = q.containsField(ID_KEY) && q.keySet().size() == 1;
-    boolean updatedExisting = false;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("update(" + q + ", " + o + ", " + upsert + ", " + multi + ")");
+      }
 
-    if (idOnlyUpdate && isNotUpdateCommand(o)) {
-      if (!o.containsField(ID_KEY)) {
-        o.put(ID_KEY, Util.clone(q.get(ID_KEY)));
-      } else {
-        o.put(ID_KEY, Util.clone(o.get(ID_KEY)));
+      if (o.containsField(ID_KEY) && q.containsField(ID_KEY) && objectComparator.compare(o.get(ID_KEY), q.get(ID_KEY)) != 0) {
+        LOG.warn("can not change _id of a document query={}, document={}", q, o);
+        throw new WriteConcernException(fongoDb.notOkErrorResult(16836, "can not change _id of a document " + ID_KEY));
       }
-      @SuppressWarnings("unchecked") Iterator<DBObject> oldObjects = _idIndex.retrieveObjects(q).iterator();
-      addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
-      updatedDocuments++;
-    } else {
-      Filter filter = expressionParser.buildFilter(q);
-      for (DBObject obj : filterByIndexes(q)) {
-        if (filter.apply(obj)) {
-          DBObject newObject = Util.clone(obj);
-          updateEngine.doUpdate(newObject, o, q, false);
-          // Check for uniqueness (throw MongoException if error)
-          addToIndexes(newObject, obj, concern);
 
-          updatedDocuments++;
-          updatedExisting = true;
+      int updatedDocuments = 0;
+      boolean idOnlyUpdate = q.containsField(ID_KEY) && q.keySet().size() == 1;
+      boolean updatedExisting = false;
 
-          if (!multi) {
-            break;
+      if (idOnlyUpdate && isNotUpdateCommand(o)) {
+        if (!o.containsField(ID_KEY)) {
+          o.put(ID_KEY, Util.clone(q.get(ID_KEY)));
+        } else {
+          o.put(ID_KEY, Util.clone(o.get(ID_KEY)));
+        }
+        @SuppressWarnings("unchecked") Iterator<DBObject> oldObjects = _idIndex.retrieveObjects(q).iterator();
+        addToIndexes(Util.clone(o), oldObjects.hasNext() ? oldObjects.next() : null, concern);
+        updatedDocuments++;
+      } else {
+        Filter filter = expressionParser.buildFilter(q);
+        for (DBObject obj : filterByIndexes(q)) {
+          if (filter.apply(obj)) {
+            DBObject newObject = Util.clone(obj);
+            updateEngine.doUpdate(newObject, o, q, false);
+            // Check for uniqueness (throw MongoException if error)
+            addToIndexes(newObject, obj, concern);
+
+            updatedDocuments++;
+            updatedExisting = true;
+
+            if (!multi) {
+              break;
+            }
           }
         }
-      }
-      if (updatedDocuments == 0 && upsert) {
-        BasicDBObject newObject = createUpsertObject(q);
-        fInsert(updateEngine.doUpdate(newObject, o, q, true), concern);
+        if (updatedDocuments == 0 && upsert) {
+          BasicDBObject newObject = createUpsertObject(q);
+          fInsert(updateEngine.doUpdate(newObject, o, q, true), concern);
 
-        updatedDocuments++;
-        updatedExisting = false;
+          updatedDocuments++;
+          updatedExisting = false;
+        }
       }
+      return new WriteResult(updateResult(updatedDocuments, updatedExisting), concern);
+    } finally {
+      unlockWrite();
     }
-    return new WriteResult(updateResult(updatedDocuments, updatedExisting), concern);
   }
 
 
@@ -318,28 +367,33 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) throws MongoException {
-    o = filterLists(o);
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("remove: " + o);
-    }
-    int updatedDocuments = 0;
-    Collection<DBObject> objectsByIndex = filterByIndexes(o);
-    Filter filter = expressionParser.buildFilter(o);
-    List<DBObject> ids = new ArrayList<DBObject>();
-    // Double pass, objectsByIndex can be not "objects"
-    for (DBObject object : objectsByIndex) {
-      if (filter.apply(object)) {
-        ids.add(object);
+  public WriteResult remove(DBObject o, WriteConcern concern, DBEncoder encoder) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      o = filterLists(o);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("remove: " + o);
       }
+      int updatedDocuments = 0;
+      Collection<DBObject> objectsByIndex = filterByIndexes(o);
+      Filter filter = expressionParser.buildFilter(o);
+      List<DBObject> ids = new ArrayList<DBObject>();
+      // Double pass, objectsByIndex can be not "objects"
+      for (DBObject object : objectsByIndex) {
+        if (filter.apply(object)) {
+          ids.add(object);
+        }
+      }
+      // Real remove.
+      for (DBObject object : ids) {
+        LOG.debug("remove object : {}", object);
+        removeFromIndexes(object);
+        updatedDocuments++;
+      }
+      return new WriteResult(updateResult(updatedDocuments, false), concern);
+    } finally {
+      unlockWrite();
     }
-    // Real remove.
-    for (DBObject object : ids) {
-      LOG.debug("remove object : {}", object);
-      removeFromIndexes(object);
-      updatedDocuments++;
-    }
-    return new WriteResult(updateResult(updatedDocuments, false), concern);
   }
 
   @Override
@@ -348,14 +402,77 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  synchronized QueryResultIterator find(DBObject ref, DBObject fields, int numToSkip, int batchSize, int limit, int options, ReadPreference readPref, DBDecoder decoder, DBEncoder encoder) {
+  QueryResultIterator find(DBObject ref, DBObject fields, int numToSkip, int batchSize, int limit, int options, ReadPreference readPref, DBDecoder decoder, DBEncoder encoder) {
     final Iterator<DBObject> values = __find(ref, fields, numToSkip, batchSize, limit, options, readPref, decoder, encoder);
     return createQueryResultIterator(values);
   }
 
+  /**
+   * Create an index, with its keys computed in parallel for big collections. With {@code background:true}, they are
+   * computed without the lock : reads and writes go on, the writes done meanwhile are caught up when the index is
+   * added.
+   */
   @Override
-  public synchronized void createIndex(DBObject keys, DBObject options, DBEncoder encoder) throws MongoException {
-    DBCollection indexColl = fongoDb.getCollection("system.indexes");
+  public void createIndex(DBObject keys, DBObject options, DBEncoder encoder) throws MongoException {
+    addIndex(keys, options);
+  }
+
+  /**
+   * Same as {@link #createIndex(DBObject, DBObject, DBEncoder)}.
+   *
+   * @return true if the index was added, false if it already existed or can't be created.
+   */
+  private boolean addIndex(DBObject keys, DBObject options) {
+    BasicDBObject rec = indexRecord(keys, options);
+    IndexBuilder background = null;
+    if (isOptionSet(options, "background")) {
+      if (hasIndex(rec)) {
+        return false;
+      }
+      background = prepareIndex(rec, keys, options, objectsVersion());
+      if (background == null) {
+        return false;
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      // Ensure index doesn't exist.
+      if (hasIndex(rec)) {
+        return false;
+      }
+      IndexBuilder builder = background == null ? prepareIndex(rec, keys, options, _idIndex.values()) : background;
+      if (builder == null) {
+        return false;
+      }
+
+      try {
+        // Objects written since the background build started are caught up.
+        List<List<Object>> notUnique = builder.merge(records, background == null ? null : _idIndex.values());
+        if (!notUnique.isEmpty()) {
+          // Duplicate key.
+          if (enforceDuplicates(getWriteConcern())) {
+            fongoDb.errorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + rec.get("name") + "  dup key: { : " + notUnique + " }").throwOnError();
+          }
+          return false;
+        }
+        indexes.add(builder.getIndex());
+        forgetQueryPlans();
+      } catch (MongoException me) {
+        fongoDb.errorResult(me.getCode(), me.getMessage()).throwOnError();
+      }
+
+      // Add index if all fine.
+      fongoDb.getCollection("system.indexes").insert(rec);
+      return true;
+    } finally {
+      unlockWrite();
+    }
+  }
+
+  /**
+   * The description of an index, as stored in "system.indexes".
+   */
+  private BasicDBObject indexRecord(DBObject keys, DBObject options) {
     BasicDBObject rec = new BasicDBObject();
     rec.append("v", 1);
     rec.append("key", keys);
@@ -374,35 +491,54 @@ public class FongoDBCollection extends DBCollection {
       }
       rec.append("name", sb.toString());
     }
-    // Ensure index doesn't exist.
-    if (indexColl.findOne(rec) != null) {
-      return;
-    }
 
     // Unique index must not be in previous find.
-    boolean unique = options != null && options.get("unique") != null && (Boolean.TRUE.equals(options.get("unique")) || "1".equals(options.get("unique")) || Integer.valueOf(1).equals(options.get("unique")));
+    boolean unique = isOptionSet(options, "unique");
     if (unique) {
       rec.append("unique", unique);
     }
     rec.putAll(options);
+    return rec;
+  }
 
+  /**
+   * Return true if an index with the same name has the same fields.
+   */
+  private boolean hasIndex(DBObject rec) {
+    List<String> fields = new ArrayList<String>(((DBObject) rec.get("key")).keySet());
+    for (IndexAbstract index : indexes) {
+      //noinspection unchecked
+      if (index.getName().equals(rec.get("name")) && fields.equals(new ArrayList<String>(index.getFields()))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A new index, with the keys of the objects computed.
+   *
+   * @return null if the index can't be created.
+   */
+  private IndexBuilder prepareIndex(BasicDBObject rec, DBObject keys, DBObject options, List<DBObject> objects) {
     try {
-      IndexAbstract index = IndexFactory.create((String) rec.get("name"), keys, unique);
-      @SuppressWarnings("unchecked") List<List<Object>> notUnique = index.addAll(_idIndex.values());
-      if (!notUnique.isEmpty()) {
-        // Duplicate key.
-        if (enforceDuplicates(getWriteConcern())) {
-          fongoDb.errorResult(11000, "E11000 duplicate key error index: " + getFullName() + ".$" + rec.get("name") + "  dup key: { : " + notUnique + " }").throwOnError();
-        }
-        return;
+      Object partialFilterExpression = options == null ? null : options.get("partialFilterExpression");
+      if (partialFilterExpression != null && (!(partialFilterExpression instanceof DBObject) || partialFilterExpression instanceof List)) {
+        throw new MongoException(67, "partialFilterExpression must be an object");
       }
-      indexes.add(index);
+      IndexAbstract index = IndexFactory.create((String) rec.get("name"), keys, isOptionSet(options, "unique"), isOptionSet(options, "sparse"), (DBObject) partialFilterExpression, records);
+      IndexBuilder builder = new IndexBuilder(index, objects, fongoDb.getIndexBuilders());
+      builder.prepare();
+      return builder;
     } catch (MongoException me) {
       fongoDb.errorResult(me.getCode(), me.getMessage()).throwOnError();
+      return null;
     }
+  }
 
-    // Add index if all fine.
-    indexColl.insert(rec);
+  private static boolean isOptionSet(DBObject options, String option) {
+    Object value = options == null ? null : options.get(option);
+    return Boolean.TRUE.equals(value) || "1".equals(value) || Integer.valueOf(1).equals(value);
   }
 
   @Override
@@ -427,9 +563,9 @@ public class FongoDBCollection extends DBCollection {
    * <p/>
    * note: decoder, readPref, options are ignored
    */
-  synchronized Iterator<DBObject> __find(final DBObject pRef, DBObject fields, int numToSkip, int batchSize, int limit,
-                                         int options,
-                                         ReadPreference readPref, DBDecoder decoder) throws MongoException {
+  Iterator<DBObject> __find(final DBObject pRef, DBObject fields, int numToSkip, int batchSize, int limit,
+                            int options,
+                            ReadPreference readPref, DBDecoder decoder) throws MongoException {
     DBObject ref = filterLists(pRef);
     long maxScan = Long.MAX_VALUE;
     if (LOG.isDebugEnabled()) {
@@ -449,15 +585,31 @@ public class FongoDBCollection extends DBCollection {
     }
 
     Filter filter = expressionParser.buildFilter(ref);
-    int foundCount = 0;
     int upperLimit = Integer.MAX_VALUE;
-    if (limit > 0) {
-      upperLimit = limit;
+    if (limit != 0) {
+      // Negative limit : only one batch (findOne), but still a limit.
+      upperLimit = Math.abs(limit);
     }
 
-    Collection<DBObject> objectsFromIndex = filterByIndexes(ref);
-    List<DBObject> results = new ArrayList<DBObject>();
     List objects = idsIn(ref);
+    if (objects.isEmpty() && maxScan == Long.MAX_VALUE) {
+      Collection<String> projected = projectedFields(fields);
+      if (projected != null) {
+        if (orderby != null) {
+          projected.addAll(orderby.keySet());
+        }
+        Collection<DBObject> keys = retrieveCoveredKeys(ref, projected);
+        if (keys != null) {
+          return new FindIterator(sortObjects(orderby, keys).iterator(), ExpressionParser.AllFilter, fields, numToSkip, upperLimit, maxScan, batchSize);
+        }
+      }
+      List<DBObject> sortedByIndex = sortByIndex(ref, orderby, filter, (int) Math.min(Integer.MAX_VALUE, (long) numToSkip + upperLimit));
+      if (sortedByIndex != null) {
+        return new FindIterator(sortedByIndex.iterator(), ExpressionParser.AllFilter, fields, numToSkip, upperLimit, maxScan, batchSize);
+      }
+    }
+
+    Collection<DBObject> objectsFromIndex = snapshotByIndexes(ref);
     if (!objects.isEmpty()) {
       if (!(ref.get(ID_KEY) instanceof DBObject)) {
         // Special case : find({id:<val}) doesn't handle skip...
@@ -471,36 +623,35 @@ public class FongoDBCollection extends DBCollection {
         objectsFromIndex = sortObjects(new BasicDBObject(ID_KEY, 1), objectsFromIndex);
       }
     }
-    int seen = 0;
-    Iterable<DBObject> objectsToSearch = sortObjects(orderby, objectsFromIndex);
-    for (Iterator<DBObject> iter = objectsToSearch.iterator(); iter.hasNext() && foundCount <= upperLimit && maxScan-- > 0; ) {
-      DBObject dbo = iter.next();
-      if (filter.apply(dbo)) {
-        if (seen++ >= numToSkip) {
-          foundCount++;
-          DBObject clonedDbo = Util.clone(dbo);
-          if (nonIdCollection) {
-            clonedDbo.removeField(ID_KEY);
-          }
-          clonedDbo.removeField(FONGO_SPECIAL_ORDER_BY);
-          for (String key : clonedDbo.keySet()) {
-            Object value = clonedDbo.get(key);
-            if (value instanceof DBRef && ((DBRef) value).getDB() == null) {
-              clonedDbo.put(key, new DBRef(this.getDB(), ((DBRef) value).getRef(), ((DBRef) value).getId()));
-            }
-          }
-          results.add(clonedDbo);
-        }
-      }
+    Iterable<DBObject> objectsToSearch;
+    if (isOrdered(orderby) && maxScan == Long.MAX_VALUE && (long) numToSkip + upperLimit < objectsFromIndex.size()) {
+      // Paginated query : only keep the first skip + limit matches, already filtered.
+      objectsToSearch = sortTopObjects(orderby, filter, objectsFromIndex, numToSkip + upperLimit);
+      filter = ExpressionParser.AllFilter;
+    } else {
+      objectsToSearch = sortObjects(orderby, ref, objectsFromIndex);
     }
+    return new FindIterator(objectsToSearch.iterator(), filter, fields, numToSkip, upperLimit, maxScan, batchSize);
+  }
 
+  /**
+   * Prepare an object found by a query to be returned : clone it and fix the DBRef.
+   */
+  private DBObject prepareResult(DBObject dbo, DBObject fields) {
+    DBObject clonedDbo = Util.clone(dbo);
+    if (nonIdCollection) {
+      clonedDbo.removeField(ID_KEY);
+    }
+    for (String key : clonedDbo.keySet()) {
+      Object value = clonedDbo.get(key);
+      if (value instanceof DBRef && ((DBRef) value).getDB() == null) {
+        clonedDbo.put(key, new DBRef(this.getDB(), ((DBRef) value).getRef(), ((DBRef) value).getId()));
+      }
+    }
     if (!Util.isProjectionEmpty(fields)) {
-      results = applyProjections(results, fields);
+      clonedDbo = applyProjections(clonedDbo, fields);
     }
-
-    LOG.debug("found results {}", results);
-
-    return replaceWithObjectClass(results).iterator();
+    return replaceWithObjectClass(clonedDbo);
   }
 
   /**
@@ -511,35 +662,285 @@ public class FongoDBCollection extends DBCollection {
   private Collection<DBObject> filterByIndexes(DBObject ref) {
     Collection<DBObject> dbObjectIterable = null;
     if (ref != null) {
-      IndexAbstract matchingIndex = searchIndex(ref);
+      QueryPlan plan = queryPlan(ref);
+      IndexAbstract matchingIndex = plan.index;
       if (matchingIndex != null) {
+        indexUsed(matchingIndex);
         //noinspection unchecked
-        dbObjectIterable = matchingIndex.retrieveObjects(ref);
+        if (plan.bitmaps != null) {
+          for (IndexAbstract bitmap : plan.bitmaps) {
+            indexUsed(bitmap);
+          }
+          dbObjectIterable = objectsOf(retrieveSlots(plan.bitmaps, ref));
+        } else if (plan.intersected != null) {
+          indexUsed(plan.intersected);
+          dbObjectIterable = intersect(matchingIndex, plan.intersected, ref);
+        } else {
+          dbObjectIterable = matchingIndex.retrieveObjects(ref);
+        }
         if (LOG.isDebugEnabled()) {
           LOG.debug("restrict with index {}, from {} to {} elements", matchingIndex.getName(), _idIndex.size(), dbObjectIterable == null ? 0 : dbObjectIterable.size());
         }
+      } else {
+        List<DBObject> branches = orBranches(ref);
+        if (branches != null) {
+          // Union of the branches, an object can match many of them.
+          BitSet seen = new BitSet(records.capacity());
+          List<DBObject> union = new ArrayList<DBObject>();
+          // The branches on bitmaps are joined on their slots, without reading the objects.
+          BitSet bitmapSlots = null;
+          for (DBObject branch : branches) {
+            BitSet slots = branchSlots(branch);
+            if (slots != null) {
+              if (bitmapSlots == null) {
+                bitmapSlots = slots;
+              } else {
+                bitmapSlots.or(slots);
+              }
+              continue;
+            }
+            for (Object object : searchIndex(branch).retrieveObjects(branch)) {
+              int slot = records.slotOf(object);
+              if (slot < 0 || !seen.get(slot)) {
+                if (slot >= 0) {
+                  seen.set(slot);
+                }
+                union.add((DBObject) object);
+              }
+            }
+          }
+          if (bitmapSlots != null) {
+            bitmapSlots.andNot(seen);
+            union.addAll(objectsOf(bitmapSlots));
+          }
+          dbObjectIterable = union;
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("restrict with {} branches of $or, from {} to {} elements", branches.size(), _idIndex.size(), dbObjectIterable.size());
+          }
+        }
       }
     }
     if (dbObjectIterable == null) {
-      //noinspection unchecked
-      dbObjectIterable = _idIndex.values();
+      // The new index may not serve the query : the objects are scanned then.
+      if (adapt(ref) && searchIndex(ref) != null) {
+        return filterByIndexes(ref);
+      }
+      dbObjectIterable = objectsVersion();
     }
     return dbObjectIterable;
   }
 
-  private List<DBObject> applyProjections(List<DBObject> results, DBObject projection) {
-    final List<DBObject> ret = new ArrayList<DBObject>(results.size());
+  /**
+   * A full scan for the query : with adaptive indexing, it's counted for the shape of the query, and the shape is
+   * indexed once scanned again and again. Not while the current thread only reads : a later scan creates the index.
+   *
+   * @return true if an index was created for the query.
+   */
+  private boolean adapt(DBObject query) {
+    AdaptiveIndexes adaptive = adaptiveIndexes;
+    if (adaptive == null || nonIdCollection) {
+      return false;
+    }
+    DBObject keys = adaptive.scanned(query, _idIndex.size());
+    if (keys == null || (lock.getReadHoldCount() > 0 && !lock.isWriteLockedByCurrentThread())) {
+      return false;
+    }
+    BasicDBObject options = new BasicDBObject("name", AdaptiveIndexes.PREFIX + indexRecord(keys, new BasicDBObject()).get("name"));
+    String name = options.getString("name");
+    lock.writeLock().lock();
+    try {
+      // An index of the user with the same name and fields is not transient.
+      if (hasIndex(indexRecord(keys, options))) {
+        return false;
+      }
+      for (String evicted : adaptive.evict(_idIndex.size())) {
+        LOG.debug("drop the transient index {} of {}", evicted, getFullName());
+        _dropIndexes(evicted);
+      }
+      LOG.debug("create the transient index {} of {} for {}", name, getFullName(), Util.queryShape(query));
+      if (!addIndex(keys, options)) {
+        return false;
+      }
+      adaptive.created(name, query, _idIndex.size());
+      return true;
+    } finally {
+      unlockWrite();
+    }
+  }
+
+  /**
+   * An index answered a query : with adaptive indexing, a transient index becomes the most recently used.
+   */
+  private void indexUsed(IndexAbstract index) {
+    AdaptiveIndexes adaptive = adaptiveIndexes;
+    if (adaptive != null) {
+      adaptive.used(index.getName(), index.size());
+    }
+  }
 
-    for (DBObject result : results) {
-      DBObject projectionMacthedResult = applyProjections(result, projection);
-      if (null != projectionMacthedResult) {
-        ret.add(projectionMacthedResult);
+  /**
+   * Opt-in : index the fields of the shapes of queries which scan the whole collection again and again. Replaces the
+   * previous settings, the indexes created before are dropped.
+   *
+   * @param minScans   full scans of a shape before indexing it.
+   * @param minSize    size of the collection from which the full scans are counted.
+   * @param maxEntries budget of the transient indexes, in entries (one per object) : the least recently used ones are
+   *                   dropped to make room for a new one.
+   */
+  public void enableAdaptiveIndexing(int minScans, int minSize, long maxEntries) {
+    disableAdaptiveIndexing();
+    adaptiveIndexes = new AdaptiveIndexes(minScans, minSize, maxEntries);
+  }
+
+  /**
+   * Stop creating transient indexes, and drop the ones created.
+   */
+  public void disableAdaptiveIndexing() {
+    AdaptiveIndexes adaptive = adaptiveIndexes;
+    adaptiveIndexes = null;
+    if (adaptive != null) {
+      for (String name : adaptive.names()) {
+        _dropIndexes(name);
       }
     }
+  }
 
-    return ret;
+  /**
+   * @return the names of the indexes created by the adaptive indexing, the least recently used first.
+   */
+  public List<String> getAdaptiveIndexNames() {
+    AdaptiveIndexes adaptive = adaptiveIndexes;
+    return adaptive == null ? Collections.<String>emptyList() : adaptive.names();
+  }
+
+  /**
+   * Covered query : if an index holds the fields of the query and the {@code fields} used from the results, the keys of
+   * the objects matching the query, instead of the objects.
+   *
+   * @return the keys matching the query, null if no index covers the query.
+   */
+  private Collection<DBObject> retrieveCoveredKeys(DBObject query, Collection<String> fields) {
+    if (query == null || query.keySet().isEmpty() || expressionParser.buildNearComparator(query) != null) {
+      return null;
+    }
+    Set<String> used = new HashSet<String>(fields);
+    for (String key : query.keySet()) {
+      if (key.startsWith("$")) {
+        return null;
+      }
+      used.add(key);
+    }
+    lock.readLock().lock();
+    try {
+      IndexAbstract covering = null;
+      double cost = 0;
+      for (IndexAbstract index : indexes) {
+        // The index must have all the objects.
+        if (index.canCover(used) && index.size() == _idIndex.size()) {
+          double estimate = index.estimate(query);
+          if (covering == null || estimate < cost) {
+            covering = index;
+            cost = estimate;
+          }
+        }
+      }
+      if (covering == null) {
+        return null;
+      }
+      LOG.debug("query {} covered by index {}", query, covering.getName());
+      indexUsed(covering);
+      //noinspection unchecked
+      return covering.retrieveKeys(query);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * The fields of the objects needed by a projection, null if the projection needs the whole object.
+   */
+  private static Collection<String> projectedFields(DBObject fields) {
+    if (Util.isProjectionEmpty(fields)) {
+      return null;
+    }
+    Set<String> projected = new HashSet<String>();
+    boolean withId = true;
+    for (String field : fields.keySet()) {
+      Object value = fields.get(field);
+      boolean included = Boolean.TRUE.equals(value) || (value instanceof Number && ((Number) value).intValue() != 0);
+      if (ID_KEY.equals(field) && !included && (Boolean.FALSE.equals(value) || value instanceof Number)) {
+        withId = false;
+      } else if (!included || field.startsWith("$") || field.contains(".$")) {
+        return null;
+      } else {
+        projected.add(field);
+      }
+    }
+    if (withId) {
+      projected.add(ID_KEY);
+    }
+    return projected;
+  }
+
+  /**
+   * Same as {@link #filterByIndexes(DBObject)}, for readers : the lock is only held while the indexes are planned and
+   * used, the objects returned are a snapshot which can be filtered without the lock.
+   */
+  private Collection<DBObject> snapshotByIndexes(DBObject ref) {
+    if (ref != null) {
+      // The indexes are planned under the lock too : their estimates read the indexes.
+      lock.readLock().lock();
+      try {
+        if (searchIndex(ref) != null || orBranches(ref) != null) {
+          return filterByIndexes(ref);
+        }
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+    if (!adapt(ref)) {
+      return objectsVersion();
+    }
+    lock.readLock().lock();
+    try {
+      return filterByIndexes(ref);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
+  /**
+   * The stored objects, as an immutable list shared by the readers until the next write.
+   * <p/>
+   * A writer gets the current objects : it must see its own changes, but they are not published before the end of
+   * the write.
+   */
+  private List<DBObject> objectsVersion() {
+    if (lock.isWriteLockedByCurrentThread()) {
+      //noinspection unchecked
+      return _idIndex.values();
+    }
+    List<DBObject> version = objectsVersion;
+    if (version == null) {
+      lock.readLock().lock();
+      try {
+        //noinspection unchecked
+        version = Collections.unmodifiableList(_idIndex.values());
+        objectsVersion = version;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+    return version;
+  }
+
+  /**
+   * End of a write : the next reader will take a new version of the objects.
+   */
+  private void unlockWrite() {
+    objectsVersion = null;
+    lock.writeLock().unlock();
+  }
 
   private static void addValuesAtPath(BasicDBObject ret, DBObject dbo, List<String> path, int startIndex) {
     String subKey = path.get(startIndex);
@@ -609,17 +1010,6 @@ public class FongoDBCollection extends DBCollection {
     return targetObject;
   }
 
-  private List<DBObject> replaceWithObjectClass(List<DBObject> resultObjects) {
-
-    final List<DBObject> targetObjects = new ArrayList<DBObject>(resultObjects.size());
-
-    for (final DBObject resultObject : resultObjects) {
-      targetObjects.add(replaceWithObjectClass(resultObject));
-    }
-
-    return targetObjects;
-  }
-
   /**
    * Returns a new instance of the object class.
    *
@@ -774,45 +1164,143 @@ public class FongoDBCollection extends DBCollection {
     return ret;
   }
 
+  /**
+   * Sort the objects, a query with $near/$nearSphere and without orderby is sorted by distance.
+   */
+  private Collection<DBObject> sortObjects(DBObject orderby, DBObject query, Collection<DBObject> objects) {
+    Comparator<DBObject> nearComparator = orderby == null ? expressionParser.buildNearComparator(query) : null;
+    if (nearComparator == null) {
+      return sortObjects(orderby, objects);
+    }
+    List<DBObject> sorted = new ArrayList<DBObject>(objects);
+    Collections.sort(sorted, nearComparator);
+    return sorted;
+  }
+
+  /**
+   * Sort the objects.
+   *
+   * @param orderby null to keep the natural order : the order of the index used, or the insertion order.
+   */
   public Collection<DBObject> sortObjects(final DBObject orderby, final Collection<DBObject> objects) {
     Collection<DBObject> objectsToSearch = objects;
-    if (orderby != null) {
-      final Set<String> orderbyKeySet = orderby.keySet();
-      if (!orderbyKeySet.isEmpty()) {
-        DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
-
-        Arrays.sort(objectsToSort, new Comparator<DBObject>() {
-          @Override
-          public int compare(DBObject o1, DBObject o2) {
-            for (String sortKey : orderbyKeySet) {
-              final List<String> path = Util.split(sortKey);
-              int sortDirection = (Integer) orderby.get(sortKey);
-
-              List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
-              List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
-
-              int compareValue = expressionParser.compareLists(o1list, o2list) * sortDirection;
-              if (compareValue != 0) {
-                return compareValue;
-              }
+    if (isOrdered(orderby)) {
+      DBObject[] objectsToSort = objects.toArray(new DBObject[objects.size()]);
+      Arrays.sort(objectsToSort, sortComparator(orderby));
+      objectsToSearch = Arrays.asList(objectsToSort);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("sorted objectsToSearch " + objectsToSearch);
+      }
+    }
+    return objectsToSearch;
+  }
+
+  /**
+   * The first {@code count} objects matching the filter, sorted : a bounded heap keeps the memory in O(count) and the
+   * sort in O(n log(count)). Equal objects keep their order, like with a full sort.
+   */
+  private List<DBObject> sortTopObjects(DBObject orderby, Filter filter, Collection<DBObject> objects, int count) {
+    final Comparator<DBObject> comparator = sortComparator(orderby);
+    // Reversed order : the head of the heap is the worst object kept.
+    Comparator<Tuple2<DBObject, Integer>> heapComparator = new Comparator<Tuple2<DBObject, Integer>>() {
+      @Override
+      public int compare(Tuple2<DBObject, Integer> o1, Tuple2<DBObject, Integer> o2) {
+        int compareValue = comparator.compare(o2._1, o1._1);
+        return compareValue != 0 ? compareValue : o2._2.compareTo(o1._2);
+      }
+    };
+    PriorityQueue<Tuple2<DBObject, Integer>> heap = new PriorityQueue<Tuple2<DBObject, Integer>>(count + 1, heapComparator);
+    int rank = 0;
+    for (DBObject object : objects) {
+      if (filter.apply(object)) {
+        Tuple2<DBObject, Integer> ranked = new Tuple2<DBObject, Integer>(object, rank++);
+        if (heap.size() < count) {
+          heap.add(ranked);
+        } else if (heapComparator.compare(ranked, heap.peek()) > 0) {
+          heap.poll();
+          heap.add(ranked);
+        }
+      }
+    }
+    DBObject[] top = new DBObject[heap.size()];
+    for (int i = top.length - 1; i >= 0; i--) {
+      top[i] = heap.poll()._1;
+    }
+    return Arrays.asList(top);
+  }
+
+  /**
+   * The first {@code count} objects matching the filter, sorted by walking an index : O(count) when most objects
+   * match. Only used when the query can't use an other index, or indexes for its $or.
+   *
+   * @return null if no index can do the sort.
+   */
+  private List<DBObject> sortByIndex(DBObject query, DBObject orderby, Filter filter, int count) {
+    if (!isOrdered(orderby)) {
+      return null;
+    }
+    lock.readLock().lock();
+    try {
+      IndexAbstract queryIndex = query == null ? null : searchIndex(query);
+      if (queryIndex == null && query != null && orBranches(query) != null) {
+        // The branches of the $or use their indexes.
+        return null;
+      }
+      for (IndexAbstract index : indexes) {
+        // The index must have all the objects.
+        if ((queryIndex == null || queryIndex == index) && index.canSort(orderby) && index.size() == _idIndex.size()) {
+          LOG.debug("sort by index {}", index.getName());
+          List<DBObject> result = new ArrayList<DBObject>();
+          for (Iterator<DBObject> iterator = index.sortedValues(query, orderby); iterator.hasNext() && result.size() < count; ) {
+            DBObject object = iterator.next();
+            if (filter.apply(object)) {
+              result.add(object);
             }
-            return 0;
           }
-        });
-        objectsToSearch = Arrays.asList(objectsToSort);
+          return result;
+        }
       }
-    } else {
-      objectsToSearch = sortObjects(new BasicDBObject(FONGO_SPECIAL_ORDER_BY, 1), objects);
+      return null;
+    } finally {
+      lock.readLock().unlock();
     }
-    if (LOG.isDebugEnabled()) {
-      LOG.debug("sorted objectsToSearch " + objectsToSearch);
+  }
+
+  private static boolean isOrdered(DBObject orderby) {
+    return orderby != null && !orderby.keySet().isEmpty();
+  }
+
+  private Comparator<DBObject> sortComparator(DBObject orderby) {
+    // Split the keys once, not for each comparison.
+    final Set<String> orderbyKeySet = orderby.keySet();
+    final List<List<String>> paths = new ArrayList<List<String>>(orderbyKeySet.size());
+    final int[] sortDirections = new int[orderbyKeySet.size()];
+    for (String sortKey : orderbyKeySet) {
+      sortDirections[paths.size()] = (Integer) orderby.get(sortKey);
+      paths.add(Util.split(sortKey));
     }
-    return objectsToSearch;
+    return new Comparator<DBObject>() {
+      @Override
+      public int compare(DBObject o1, DBObject o2) {
+        for (int i = 0; i < sortDirections.length; i++) {
+          final List<String> path = paths.get(i);
+
+          List<Object> o1list = expressionParser.getEmbeddedValues(path, o1);
+          List<Object> o2list = expressionParser.getEmbeddedValues(path, o2);
+
+          int compareValue = expressionParser.compareLists(o1list, o2list) * sortDirections[i];
+          if (compareValue != 0) {
+            return compareValue;
+          }
+        }
+        return 0;
+      }
+    };
   }
 
 
   @Override
-  public synchronized long getCount(DBObject query, DBObject fields, long limit, long skip) {
+  public long getCount(DBObject query, DBObject fields, long limit, long skip) {
     query = filterLists(query);
     Filter filter = query == null ? ExpressionParser.AllFilter : expressionParser.buildFilter(query);
     long count = 0;
@@ -821,7 +1309,13 @@ public class FongoDBCollection extends DBCollection {
       upperLimit = limit;
     }
     int seen = 0;
-    for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext() && count <= upperLimit; ) {
+    Collection<DBObject> objects = retrieveCoveredKeys(query, Collections.<String>emptyList());
+    if (objects != null) {
+      filter = ExpressionParser.AllFilter;
+    } else {
+      objects = snapshotByIndexes(query);
+    }
+    for (Iterator<DBObject> iter = objects.iterator(); iter.hasNext() && count <= upperLimit; ) {
       DBObject value = iter.next();
       if (filter.apply(value)) {
         if (seen++ >= skip) {
@@ -833,60 +1327,79 @@ public class FongoDBCollection extends DBCollection {
   }
 
   @Override
-  public synchronized long getCount(DBObject query, DBObject fields, ReadPreference readPrefs) {
+  public long getCount(DBObject query, DBObject fields, ReadPreference readPrefs) {
     //as we're in memory we don't need to worry about readPrefs
     return getCount(query, fields, 0, 0);
   }
 
   @Override
-  public synchronized DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
-    LOG.debug("findAndModify({}, {}, {}, {}, {}, {}, {}", query, fields, sort, remove, update, returnNew, upsert);
-    query = filterLists(query);
-    update = filterLists(update);
-    Filter filter = expressionParser.buildFilter(query);
-
-    Iterable<DBObject> objectsToSearch = sortObjects(sort, filterByIndexes(query));
-    DBObject beforeObject = null;
-    DBObject afterObject = null;
-    for (DBObject dbo : objectsToSearch) {
-      if (filter.apply(dbo)) {
-        beforeObject = dbo;
-        if (!remove) {
-          afterObject = Util.clone(beforeObject);
-          updateEngine.doUpdate(afterObject, update, query, false);
-          addToIndexes(afterObject, beforeObject, getWriteConcern());
-          break;
+  public DBObject findAndModify(DBObject query, DBObject fields, DBObject sort, boolean remove, DBObject update, boolean returnNew, boolean upsert) {
+    lock.writeLock().lock();
+    try {
+      LOG.debug("findAndModify({}, {}, {}, {}, {}, {}, {}", query, fields, sort, remove, update, returnNew, upsert);
+      query = filterLists(query);
+      update = filterLists(update);
+      Filter filter = expressionParser.buildFilter(query);
+
+      // Only the first match is modified.
+      Iterable<DBObject> objectsToSearch = sortByIndex(query, sort, filter, 1);
+      if (objectsToSearch == null) {
+        if (isOrdered(sort)) {
+          objectsToSearch = sortTopObjects(sort, filter, filterByIndexes(query), 1);
         } else {
-          remove(dbo);
-          return dbo;
+          objectsToSearch = sortObjects(sort, query, filterByIndexes(query));
         }
       }
-    }
-    if (beforeObject != null && !returnNew) {
-      return replaceWithObjectClass(applyProjections(beforeObject, fields));
-    }
-    if (beforeObject == null && upsert && !remove) {
-      beforeObject = new BasicDBObject();
-      afterObject = createUpsertObject(query);
-      fInsert(updateEngine.doUpdate(afterObject, update, query, upsert), getWriteConcern());
-    }
+      DBObject beforeObject = null;
+      DBObject afterObject = null;
+      for (DBObject dbo : objectsToSearch) {
+        if (filter.apply(dbo)) {
+          beforeObject = dbo;
+          if (!remove) {
+            afterObject = Util.clone(beforeObject);
+            updateEngine.doUpdate(afterObject, update, query, false);
+            addToIndexes(afterObject, beforeObject, getWriteConcern());
+            break;
+          } else {
+            remove(dbo);
+            return dbo;
+          }
+        }
+      }
+      if (beforeObject != null && !returnNew) {
+        return replaceWithObjectClass(applyProjections(beforeObject, fields));
+      }
+      if (beforeObject == null && upsert && !remove) {
+        beforeObject = new BasicDBObject();
+        afterObject = createUpsertObject(query);
+        fInsert(updateEngine.doUpdate(afterObject, update, query, upsert), getWriteConcern());
+      }
 
-    final DBObject resultObject;
-    if (returnNew) {
-      resultObject = applyProjections(afterObject, fields);
-    } else {
-      resultObject = applyProjections(beforeObject, fields);
-    }
+      final DBObject resultObject;
+      if (returnNew) {
+        resultObject = applyProjections(afterObject, fields);
+      } else {
+        resultObject = applyProjections(beforeObject, fields);
+      }
 
-    return replaceWithObjectClass(resultObject);
+      return replaceWithObjectClass(resultObject);
+    } finally {
+      unlockWrite();
+    }
   }
 
   @Override
-  public synchronized List distinct(String key, DBObject query) {
+  public List distinct(String key, DBObject query) {
     query = filterLists(query);
     Set<Object> results = new LinkedHashSet<Object>();
     Filter filter = expressionParser.buildFilter(query);
-    for (Iterator<DBObject> iter = filterByIndexes(query).iterator(); iter.hasNext(); ) {
+    Collection<DBObject> objects = retrieveCoveredKeys(query, Collections.singletonList(key));
+    if (objects != null) {
+      filter = ExpressionParser.AllFilter;
+    } else {
+      objects = snapshotByIndexes(query);
+    }
+    for (Iterator<DBObject> iter = objects.iterator(); iter.hasNext(); ) {
       DBObject value = iter.next();
       if (filter.apply(value)) {
         List<Object> keyValues = expressionParser.getEmbeddedValues(key, value);
@@ -910,7 +1423,12 @@ public class FongoDBCollection extends DBCollection {
 
   @Override
   public List<Cursor> parallelScan(ParallelScanOptions options) {
-    return Arrays.asList((Cursor) this.createQueryResultIterator(this._idIndex.values().iterator()));
+    lock.readLock().lock();
+    try {
+      return Arrays.asList((Cursor) this.createQueryResultIterator(objectsVersion().iterator()));
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   @Override
@@ -960,34 +1478,56 @@ public class FongoDBCollection extends DBCollection {
       return new AcknowledgedBulkWriteResult(insertedCount, matchedCount, removedCount, modifiedCount, upserts);
   }
 
-  protected synchronized void _dropIndexes(String name) throws MongoException {
-    DBCollection indexColl = fongoDb.getCollection("system.indexes");
-    indexColl.remove(new BasicDBObject("name", name));
-    ListIterator<IndexAbstract> iterator = indexes.listIterator();
-    while (iterator.hasNext()) {
-      IndexAbstract index = iterator.next();
-      if (index.getName().equals(name)) {
-        iterator.remove();
-        break;
+  protected void _dropIndexes(String name) throws MongoException {
+    lock.writeLock().lock();
+    try {
+      DBCollection indexColl = fongoDb.getCollection("system.indexes");
+      indexColl.remove(new BasicDBObject("name", name));
+      for (IndexAbstract index : indexes) {
+        if (index.getName().equals(name)) {
+          indexes.remove(index);
+          forgetQueryPlans();
+          break;
+        }
       }
+      AdaptiveIndexes adaptive = adaptiveIndexes;
+      if (adaptive != null) {
+        adaptive.dropped(name);
+      }
+    } finally {
+      unlockWrite();
     }
   }
 
-  protected synchronized void _dropIndexes() {
-    List<DBObject> indexes = fongoDb.getCollection("system.indexes").find().toArray();
-    // Two step for no concurrent modification exception
-    for (DBObject index : indexes) {
-      if (!ID_NAME_INDEX.equals(index.get("name").toString())) {
-        dropIndexes(index.get("name").toString());
+  protected void _dropIndexes() {
+    lock.writeLock().lock();
+    try {
+      List<DBObject> indexes = fongoDb.getCollection("system.indexes").find().toArray();
+      // Two step for no concurrent modification exception
+      for (DBObject index : indexes) {
+        if (!ID_NAME_INDEX.equals(index.get("name").toString())) {
+          dropIndexes(index.get("name").toString());
+        }
       }
+    } finally {
+      unlockWrite();
     }
   }
 
   @Override
   public void drop() {
-    _idIndex.clear();
-    _dropIndexes(); // _idIndex must stay.
-    fongoDb.removeCollection(this);
+    lock.writeLock().lock();
+    try {
+      // The indexes which stay (_id) must not keep the slots of the objects.
+      for (IndexAbstract index : indexes) {
+        index.clear();
+      }
+      records.clear();
+      _dropIndexes(); // _idIndex must stay.
+      fongoDb.removeCollection(this);
+    } finally {
+      unlockWrite();
+    }
   }
 
   /**
@@ -996,31 +1536,291 @@ public class FongoDBCollection extends DBCollection {
    * @param query query for restriction
    * @return the most restrictive index, or null.
    */
-  private synchronized IndexAbstract searchIndex(DBObject query) {
+  private IndexAbstract searchIndex(DBObject query) {
+    return queryPlan(query).index;
+  }
+
+  /**
+   * Plan of the query. The plan is kept for the queries with the same {@link #planKey(DBObject) key}, until the indexes
+   * change or the collection size is doubled or halved, or the plan is the least recently used of a full cache.
+   * <p/>
+   * The plan is chosen from the estimates of the first query of the key : the later queries get the same plan even if
+   * their values would estimate otherwise.
+   */
+  private QueryPlan queryPlan(DBObject query) {
+    // Read before the indexes : a plan made with old indexes goes in an old cache.
+    Map<String, QueryPlan> plans = queryPlans;
+    String key = planKey(query);
+    int size = _idIndex.size();
+    QueryPlan plan = plans.get(key);
+    if (plan == null || size > 2 * plan.size || size < plan.size / 2) {
+      plan = planQuery(query, size);
+      plans.put(key, plan);
+    } else if (!plan.usableFor(query)) {
+      // A partial index of the plan doesn't hold all the objects matching this query.
+      return planQuery(query, size);
+    }
+    return plan;
+  }
+
+  /**
+   * Key of the plans : the shape of the query (its fields, operators and types of values), with the number of values
+   * of each $in, rounded to a power of 2. The estimates of the indexes depend on these, not on the values themselves.
+   */
+  private static String planKey(DBObject query) {
+    StringBuilder key = new StringBuilder(Util.queryShape(query));
+    for (String field : query.keySet()) {
+      Object condition = query.get(field);
+      if (condition instanceof DBObject && !(condition instanceof List)
+          && ((DBObject) condition).get(ExpressionParser.IN) instanceof Collection) {
+        int values = ((Collection<?>) ((DBObject) condition).get(ExpressionParser.IN)).size();
+        key.append(field).append(ExpressionParser.IN).append(':').append(32 - Integer.numberOfLeadingZeros(values)).append(',');
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * The index with the least estimated objects to read. On equal estimates, the index with more fields, or unique.
+   * <p/>
+   * When this index reads many objects, and an other index on other fields is selective too, the objects found by both
+   * are intersected.
+   */
+  private QueryPlan planQuery(DBObject query, int size) {
     IndexAbstract result = null;
-    int foundCommon = -1;
-    Set<String> queryFields = query.keySet();
+    double cost = 0;
+    List<IndexAbstract> candidates = new ArrayList<IndexAbstract>();
+    List<Double> estimates = new ArrayList<Double>();
     for (IndexAbstract index : indexes) {
-      if (index.canHandle(query)) {
-        // The most restrictive first.
-        if (index.getFields().size() > foundCommon || (result != null && !result.isUnique() && index.isUnique())) {
+      if (index.canHandle(query) && index.filterImpliedBy(query)) {
+        double estimate = index.estimate(query);
+        candidates.add(index);
+        estimates.add(estimate);
+        if (result == null || estimate < cost
+            || (estimate == cost && (index.getFields().size() > result.getFields().size() || (!result.isUnique() && index.isUnique())))) {
           result = index;
-          foundCommon = index.getFields().size();
+          cost = estimate;
+        }
+      }
+    }
+
+    // Conditions on many bitmap indexes : their slots are intersected.
+    List<IndexAbstract> bitmaps = new ArrayList<IndexAbstract>();
+    double bitmapCost = size;
+    for (int i = 0; i < candidates.size(); i++) {
+      IndexAbstract index = candidates.get(i);
+      if (index.canRetrieveSlots(restrictQuery(query, index))) {
+        bitmaps.add(index);
+        bitmapCost = Math.min(bitmapCost, estimates.get(i));
+      }
+    }
+    if (bitmaps.size() < 2 || bitmapCost > cost) {
+      bitmaps = null;
+    }
+
+    IndexAbstract intersected = null;
+    if (bitmaps == null && result != null && cost >= MIN_INTERSECTION && isPlainIndex(result)) {
+      double intersectedCost = 0;
+      for (int i = 0; i < candidates.size(); i++) {
+        IndexAbstract index = candidates.get(i);
+        double estimate = estimates.get(i);
+        if (index != result && estimate <= size * MAX_INTERSECTION_SELECTIVITY && cost <= size * MAX_INTERSECTION_SELECTIVITY
+            && isPlainIndex(index) && !result.getFields().containsAll(index.getFields())
+            && (intersected == null || estimate < intersectedCost)) {
+          intersected = index;
+          intersectedCost = estimate;
         }
       }
     }
 
-    LOG.debug("searchIndex() found index {} for fields {}", result, queryFields);
+    LOG.debug("planQuery() found index {} ({} objects estimated), intersected with {}, bitmaps {}, for fields {}", result, cost, intersected, bitmaps, query.keySet());
 
+    return new QueryPlan(result, intersected, bitmaps, size);
+  }
+
+  /**
+   * Only plain ascending/descending indexes : text or geo indexes don't select like the query.
+   */
+  private static boolean isPlainIndex(IndexAbstract index) {
+    if (index.isGeoIndex()) {
+      return false;
+    }
+    for (Object direction : index.getKeys().toMap().values()) {
+      if (!(direction instanceof Number) && !"bitmap".equals(direction)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Objects found by two indexes, each one looking only at its own fields : the caller must filter them.
+   */
+  private Collection<DBObject> intersect(IndexAbstract index, IndexAbstract intersected, DBObject query) {
+    // Indexes share the objects : the intersection is on their slots.
+    BitSet found = records.slotsOf(index.retrieveObjects(restrictQuery(query, index)));
+    List<DBObject> result = new ArrayList<DBObject>();
+    for (Object object : intersected.retrieveObjects(restrictQuery(query, intersected))) {
+      int slot = records.slotOf(object);
+      if (slot >= 0 && found.get(slot)) {
+        result.add((DBObject) object);
+      }
+    }
     return result;
   }
 
+  /**
+   * Slots of the objects found by bitmap indexes, each one looking only at its own fields : the caller must filter
+   * them.
+   */
+  private BitSet retrieveSlots(List<IndexAbstract> bitmaps, DBObject query) {
+    BitSet slots = null;
+    for (IndexAbstract index : bitmaps) {
+      BitSet found = index.retrieveSlots(restrictQuery(query, index));
+      if (slots == null) {
+        slots = found;
+      } else {
+        slots.and(found);
+      }
+    }
+    return slots;
+  }
+
+  /**
+   * Slots of the objects found for a branch of a $or, if its plan uses only bitmap indexes, or null.
+   */
+  private BitSet branchSlots(DBObject branch) {
+    QueryPlan plan = queryPlan(branch);
+    if (plan.bitmaps != null) {
+      return retrieveSlots(plan.bitmaps, branch);
+    }
+    if (plan.intersected == null && plan.index.canRetrieveSlots(restrictQuery(branch, plan.index))) {
+      return plan.index.retrieveSlots(restrictQuery(branch, plan.index));
+    }
+    return null;
+  }
+
+  private List<DBObject> objectsOf(BitSet slots) {
+    List<DBObject> objects = new ArrayList<DBObject>(slots.cardinality());
+    for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+      objects.add(records.get(slot));
+    }
+    return objects;
+  }
+
+  /**
+   * The part of the query on the fields of the index.
+   */
+  private static DBObject restrictQuery(DBObject query, IndexAbstract index) {
+    DBObject restricted = new BasicDBObject();
+    for (String key : query.keySet()) {
+      for (Object field : index.getFields()) {
+        if (key.equals(field) || ((String) field).startsWith(key + ".")) {
+          restricted.put(key, query.get(key));
+          break;
+        }
+      }
+    }
+    return restricted;
+  }
+
+  /**
+   * A cache of plans, the least recently used one dropped when full. Thread safe.
+   */
+  private static Map<String, QueryPlan> newQueryPlans() {
+    return Collections.synchronizedMap(new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+        return size() > MAX_QUERY_PLANS;
+      }
+    });
+  }
+
+  private void forgetQueryPlans() {
+    queryPlans = newQueryPlans();
+  }
+
+  /**
+   * Index chosen for a shape of query.
+   */
+  private static class QueryPlan {
+    private final IndexAbstract index;
+    // Other index to intersect with, or null.
+    private final IndexAbstract intersected;
+    // Bitmap indexes to intersect on their slots, or null.
+    private final List<IndexAbstract> bitmaps;
+    // Size of the collection when planned.
+    private final int size;
+
+    QueryPlan(IndexAbstract index, IndexAbstract intersected, List<IndexAbstract> bitmaps, int size) {
+      this.index = index;
+      this.intersected = intersected;
+      this.bitmaps = bitmaps;
+      this.size = size;
+    }
+
+    /**
+     * Whether the filters of the partial indexes of the plan are implied by the query : they depend on its values, not
+     * only on its shape.
+     */
+    boolean usableFor(DBObject query) {
+      if ((index != null && !index.filterImpliedBy(query)) || (intersected != null && !intersected.filterImpliedBy(query))) {
+        return false;
+      }
+      if (bitmaps != null) {
+        for (IndexAbstract bitmap : bitmaps) {
+          if (!bitmap.filterImpliedBy(query)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A query with a $or can use the indexes if each branch, with the other fields of the query, can use one.
+   *
+   * @param query query for restriction
+   * @return the query of each branch, or null if a branch can't use an index.
+   */
+  private List<DBObject> orBranches(DBObject query) {
+    Object or = query.get(ExpressionParser.OR);
+    if (nonIdCollection || !(or instanceof List) || ((List) or).isEmpty()) {
+      return null;
+    }
+    List<DBObject> branches = new ArrayList<DBObject>();
+    for (Object branch : (List) or) {
+      if (!(branch instanceof DBObject)) {
+        return null;
+      }
+      DBObject branchQuery = new BasicDBObject();
+      for (String key : query.keySet()) {
+        if (!ExpressionParser.OR.equals(key)) {
+          branchQuery.put(key, query.get(key));
+        }
+      }
+      for (String key : ((DBObject) branch).keySet()) {
+        if (branchQuery.containsField(key)) {
+          return null;
+        }
+        branchQuery.put(key, ((DBObject) branch).get(key));
+      }
+      IndexAbstract index = searchIndex(branchQuery);
+      if (index == null || !isPlainIndex(index)) {
+        return null;
+      }
+      branches.add(branchQuery);
+    }
+    return branches;
+  }
+
   /**
    * Search the geo index.
    *
    * @return the geo index, or null.
    */
-  private synchronized IndexAbstract searchGeoIndex(boolean unique) {
+  private IndexAbstract searchGeoIndex(boolean unique) {
     IndexAbstract result = null;
     for (IndexAbstract index : indexes) {
       if (index.isGeoIndex()) {
@@ -1046,11 +1846,14 @@ public class FongoDBCollection extends DBCollection {
    * @param object    new object to insert.
    * @param oldObject null if insert, old object if update.
    */
-  private synchronized void addToIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
+  private void addToIndexes(DBObject object, DBObject oldObject, WriteConcern concern) {
     // Ensure "insert/update" create collection into "fongoDB"
     this.fongoDb.addCollection(this);
     // First, try to see if index can add the new value.
     for (IndexAbstract index : indexes) {
+      if (!index.canIndex(object)) {
+        continue;
+      }
       @SuppressWarnings("unchecked") List<List<Object>> error = index.checkAddOrUpdate(object, oldObject);
       if (!error.isEmpty()) {
         // TODO formatting : E11000 duplicate key error index: test.zip.$city_1_state_1_pop_1  dup key: { : "BARRE", : "MA", : 4546.0 }
@@ -1064,13 +1867,23 @@ public class FongoDBCollection extends DBCollection {
  //     Set<String> queryFields = object.keySet();
     DBObject idFirst = Util.cloneIdFirst(object);
     Set<String> oldQueryFields = oldObject == null ? Collections.<String>emptySet() : oldObject.keySet();
+    if (oldObject != null) {
+      // The new object takes the slot of the old one : the indexes where its keys don't change have nothing to do.
+      records.replace(oldObject, idFirst);
+    } else {
+      records.add(idFirst);
+    }
     for (IndexAbstract index : indexes) {
-      if (index.canHandle(object)) {
-        index.addOrUpdate(idFirst, oldObject);
-      } else if (index.canHandle(oldObject))
+      if (index.canIndex(object)) {
+        // The old object may not be in a sparse or partial index.
+        index.addOrUpdate(idFirst, index.canIndex(oldObject) ? oldObject : null);
+      } else if (index.canIndex(oldObject))
         // In case of update and removing a field, we must remove from the index.
         index.remove(oldObject);
     }
+    if (oldObject != null) {
+      records.forget(oldObject);
+    }
   }
 
   /**
@@ -1078,46 +1891,132 @@ public class FongoDBCollection extends DBCollection {
    *
    * @param object object to remove.
    */
-  private synchronized void removeFromIndexes(DBObject object) {
+  private void removeFromIndexes(DBObject object) {
     Set<String> queryFields = object.keySet();
     for (IndexAbstract index : indexes) {
-      if (index.canHandle(object)) {
+      if (index.canIndex(object)) {
         index.remove(object);
       }
     }
+    records.remove(object);
   }
 
-  public synchronized Collection<IndexAbstract> getIndexes() {
-    return Collections.unmodifiableList(indexes);
+  public Collection<IndexAbstract> getIndexes() {
+    lock.readLock().lock();
+    try {
+      return Collections.unmodifiableList(new ArrayList<IndexAbstract>(indexes));
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
-  public synchronized List<DBObject> geoNear(DBObject near, DBObject query, Number limit, Number maxDistance, boolean spherical) {
-    IndexAbstract matchingIndex = searchGeoIndex(true);
-    if (matchingIndex == null) {
-      fongoDb.notOkErrorResult(-5, "no geo indices for geoNear").throwOnError();
-    }
-    //noinspection ConstantConditions
-    LOG.info("geoNear() near:{}, query:{}, limit:{}, maxDistance:{}, spherical:{}, use index:{}", near, query, limit, maxDistance, spherical, matchingIndex.getName());
+  public List<DBObject> geoNear(DBObject near, DBObject query, Number limit, Number maxDistance, boolean spherical) {
+    lock.readLock().lock();
+    try {
+      IndexAbstract matchingIndex = searchGeoIndex(true);
+      if (matchingIndex == null) {
+        fongoDb.notOkErrorResult(-5, "no geo indices for geoNear").throwOnError();
+      }
+      //noinspection ConstantConditions
+      LOG.info("geoNear() near:{}, query:{}, limit:{}, maxDistance:{}, spherical:{}, use index:{}", near, query, limit, maxDistance, spherical, matchingIndex.getName());
 
-    List<LatLong> latLongs = GeoUtil.latLon(Collections.<String>emptyList(), near);
-    return ((GeoIndex) matchingIndex).geoNear(query == null ? new BasicDBObject() : query, latLongs, limit == null ? 100 : limit.intValue(), spherical);
+      List<LatLong> latLongs = GeoUtil.latLon(Collections.<String>emptyList(), near);
+      return ((GeoIndex) matchingIndex).geoNear(query == null ? new BasicDBObject() : query, latLongs, limit == null ? 100 : limit.intValue(), spherical);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   //Text search Emulation see http://docs.mongodb.org/manual/tutorial/search-for-text/ for mongo
-  public synchronized DBObject text(String search, Number limit, DBObject project) {
-    TextSearch ts = new TextSearch(this);
-    return ts.findByTextSearch(search, project == null ? new BasicDBObject() : project, limit == null ? 100 : limit.intValue());
+  public DBObject text(String search, Number limit, DBObject project) {
+    lock.readLock().lock();
+    try {
+      TextSearch ts = new TextSearch(this);
+      return ts.findByTextSearch(search, project == null ? new BasicDBObject() : project, limit == null ? 100 : limit.intValue());
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Results of a find, pulled by the cursor : the objects are filtered, cloned and projected by batch of
+   * {@code batchSize}, only when the cursor needs them.
+   */
+  private class FindIterator implements Iterator<DBObject> {
+    private final Iterator<DBObject> objects;
+    private final Filter filter;
+    private final DBObject fields;
+    private final int numToSkip;
+    private final int upperLimit;
+    private final int batchSize;
+    private final Queue<DBObject> batch = new LinkedList<DBObject>();
+    private long maxScan;
+    private int seen = 0;
+    private int foundCount = 0;
+
+    FindIterator(Iterator<DBObject> objects, Filter filter, DBObject fields, int numToSkip, int upperLimit, long maxScan, int batchSize) {
+      this.objects = objects;
+      this.filter = filter;
+      this.fields = fields;
+      this.numToSkip = numToSkip;
+      this.upperLimit = upperLimit;
+      this.maxScan = maxScan;
+      // Negative batch size means "only one batch" for mongo, the cursor handles the limit.
+      this.batchSize = batchSize == 0 ? DEFAULT_BATCH_SIZE : Math.abs(batchSize);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (batch.isEmpty()) {
+        nextBatch();
+      }
+      return !batch.isEmpty();
+    }
+
+    @Override
+    public DBObject next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return batch.poll();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private void nextBatch() {
+      while (batch.size() < batchSize && objects.hasNext() && foundCount < upperLimit && maxScan-- > 0) {
+        DBObject dbo = objects.next();
+        if (filter.apply(dbo)) {
+          if (seen++ >= numToSkip) {
+            foundCount++;
+            batch.add(prepareResult(dbo, fields));
+          }
+        }
+      }
+      LOG.debug("found results {}", batch);
+    }
   }
 
   private QueryResultIterator createQueryResultIterator(Iterator<DBObject> values) {
     try {
-      QueryResultIterator iterator = new ObjenesisStd().getInstantiatorOf(QueryResultIterator.class).newInstance();
-      Field field = QueryResultIterator.class.getDeclaredField("_cur");
-      field.setAccessible(true);
-      field.set(iterator, values);
+      QueryResultIterator iterator = QUERY_RESULT_ITERATOR_INSTANTIATOR.newInstance();
+      QUERY_RESULT_ITERATOR_CUR.set(iterator, values);
       return iterator;
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
+
+  private static Field queryResultIteratorCur() {
+    try {
+      Field field = QueryResultIterator.class.getDeclaredField("_cur");
+      field.setAccessible(true);
+      return field;
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
@@ -0,0 +1,76 @@
+package com.github.fakemongo;
+
+import ch.qos.logback.classic.Level;
+import com.github.fakemongo.impl.ExpressionParser;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.FongoDBCollection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read throughput of one collection shared by several threads.
+ */
+public class ConcurrentPerfTest {
+  public static void main(String[] args) throws InterruptedException {
+    // Desactivate logback
+    ch.qos.logback.classic.Logger log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(FongoDBCollection.class);
+    log.setLevel(Level.ERROR);
+    log = (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(ExpressionParser.class);
+    log.setLevel(Level.ERROR);
+
+    DBCollection collection = new Fongo("fongo").getDB("db").getCollection("coll");
+    collection.createIndex(new BasicDBObject("n", 1));
+    for (int k = 0; k < 10000; k++) {
+      collection.insert(new BasicDBObject("_id", k).append("n", k % 100).append("a", k));
+    }
+
+    System.out.println("Warming jvm");
+    doitFindConcurrent(collection, 1, 2000);
+    System.out.println("Warming jvm done.");
+
+    int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      long startTime = System.currentTimeMillis();
+      long queries = doitFindConcurrent(collection, threads, 2000);
+      long took = Math.max(1, System.currentTimeMillis() - startTime);
+      System.out.println(threads + " thread(s) : " + queries + " queries in " + took + " ms (" + (queries * 1000 / took) + " queries/s)");
+    }
+  }
+
+  /**
+   * Each thread run {@code queriesPerThread} indexed finds and a few full scans.
+   *
+   * @return the number of queries done.
+   */
+  public static long doitFindConcurrent(final DBCollection collection, int threads, final int queriesPerThread) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicLong queries = new AtomicLong();
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < queriesPerThread; i++) {
+              collection.find(new BasicDBObject("n", i % 100)).toArray();
+              if (i % 100 == 0) {
+                collection.findOne(new BasicDBObject("a", i));
+              }
+              queries.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    start.countDown();
+    done.await();
+    return queries.get();
+  }
+}
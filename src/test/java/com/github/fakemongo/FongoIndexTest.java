@@ -11,9 +11,11 @@ import com.mongodb.DBObject;
 import com.mongodb.FongoDBCollection;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcernException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import org.assertj.core.api.Assertions;
+import org.bson.types.ObjectId;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -327,16 +329,17 @@ public class FongoIndexTest {
     assertEquals(0, indexDate.getLookupCount());
     assertEquals(0, indexPermalink.getLookupCount());
 
+    // 1.5 objects by date, 2 by name : date is more restrictive.
     objects = collection.find(new BasicDBObject("firstname", "firstname0").append("lastname", "lastname0").append("date", 0)).toArray();
     assertEquals(1, objects.size());
-    assertEquals(2, indexFLname.getLookupCount());
-    assertEquals(0, indexDate.getLookupCount());
+    assertEquals(1, indexFLname.getLookupCount());
+    assertEquals(1, indexDate.getLookupCount());
     assertEquals(0, indexPermalink.getLookupCount());
 
     objects = collection.find(new BasicDBObject("permalink", 0)).toArray();
     assertEquals(1, objects.size());
-    assertEquals(2, indexFLname.getLookupCount());
-    assertEquals(0, indexDate.getLookupCount());
+    assertEquals(1, indexFLname.getLookupCount());
+    assertEquals(1, indexDate.getLookupCount());
     assertEquals(1, indexPermalink.getLookupCount());
   }
 
@@ -736,6 +739,202 @@ public class FongoIndexTest {
     ), cursor.toArray());
   }
 
+  @Test
+  public void should_lookup_values_in_hashed_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("shard", "hashed"));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("shard", i % 10));
+    }
+    // Same bucket than 2, but another value.
+    collection.insert(new BasicDBObject("_id", 100).append("shard", 2.5D));
+    IndexAbstract index = getIndex(collection, "shard_hashed");
+    assertEquals(10, index.distinctKeys());
+
+    assertEquals(10, collection.count(new BasicDBObject("shard", 2)));
+    assertEquals(1, collection.count(new BasicDBObject("shard", 2.5D)));
+    assertEquals(20, collection.count(new BasicDBObject("shard", new BasicDBObject("$in", Arrays.asList(3, 4.0D)))));
+    assertEquals(3, index.getLookupCount());
+
+    collection.remove(new BasicDBObject("shard", 2));
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 100).append("shard", 2.5D)),
+        collection.find(new BasicDBObject("shard", 2.5D)).toArray());
+  }
+
+  @Test
+  public void should_build_index_of_a_big_collection_in_partitions() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    List<DBObject> objects = new ArrayList<DBObject>();
+    int withTag = 0;
+    for (int i = 0; i < 20000; i++) {
+      objects.add(new BasicDBObject("_id", i).append("n", i % 100).append("tags", Arrays.asList(i % 7, i % 11)));
+      if (i % 7 == 3 || i % 11 == 3) {
+        withTag++;
+      }
+    }
+    collection.insert(objects);
+    collection.createIndex(new BasicDBObject("n", 1));
+    collection.createIndex(new BasicDBObject("tags", 1));
+
+    assertEquals(20000, getIndex(collection, "n_1").size());
+    assertEquals(200, collection.count(new BasicDBObject("n", 42)));
+    assertEquals(withTag, collection.count(new BasicDBObject("tags", 3)));
+  }
+
+  @Test
+  public void should_build_index_in_background() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 10));
+    }
+    collection.createIndex(new BasicDBObject("n", 1), new BasicDBObject("background", true));
+    IndexAbstract index = getIndex(collection, "n_1");
+    assertEquals(100, index.size());
+
+    collection.update(new BasicDBObject("_id", 3), new BasicDBObject("$set", new BasicDBObject("n", 4)));
+    assertEquals(9, collection.count(new BasicDBObject("n", 3)));
+    assertEquals(11, collection.count(new BasicDBObject("n", 4)));
+    assertEquals(2, index.getLookupCount());
+  }
+
+  @Test
+  public void should_look_up_ids_in_primary_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.insert(new BasicDBObject("_id", "a"), new BasicDBObject("_id", "b"), new BasicDBObject("_id", 1));
+    IndexAbstract index = getIndex(collection, "_id");
+
+    assertEquals(Arrays.asList(new BasicDBObject("_id", "b")), index.retrieveObjects(new BasicDBObject("_id", "b")));
+    assertEquals(2, index.retrieveObjects(new BasicDBObject("_id", new BasicDBObject("$in", Arrays.asList("b", "a", "b", "c")))).size());
+    // 1L is not the key of 1, but is equal for the query.
+    assertEquals(1, index.retrieveObjects(new BasicDBObject("_id", 1L)).size());
+    assertEquals(1, collection.count(new BasicDBObject("_id", 1L)));
+  }
+
+  @Test
+  public void should_walk_ranges_of_ids_in_primary_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    for (int i : new int[]{5, 1, 4, 2, 3}) {
+      collection.insert(new BasicDBObject("_id", i));
+    }
+    collection.insert(new BasicDBObject("_id", 3L));
+    IndexAbstract index = getIndex(collection, "_id_");
+
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 4), new BasicDBObject("_id", 5)),
+        index.retrieveObjects(new BasicDBObject("_id", new BasicDBObject("$gt", 3))));
+    assertEquals(3, index.retrieveObjects(new BasicDBObject("_id", new BasicDBObject("$gte", 2L).append("$lt", 4))).size());
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 5), new BasicDBObject("_id", 4)),
+        collection.find(new BasicDBObject("_id", new BasicDBObject("$gt", 3))).sort(new BasicDBObject("_id", -1)).toArray());
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 2), new BasicDBObject("_id", 3), new BasicDBObject("_id", 3L)),
+        collection.find(new BasicDBObject("_id", new BasicDBObject("$gte", 2).append("$lt", 4))).sort(new BasicDBObject("_id", 1)).toArray());
+    long lookups = index.getLookupCount();
+    assertEquals(Arrays.asList(new BasicDBObject("_id", 1), new BasicDBObject("_id", 2)),
+        collection.find().sort(new BasicDBObject("_id", 1)).limit(2).toArray());
+    assertTrue(index.getLookupCount() > lookups);
+  }
+
+  @Test
+  public void should_find_objectids_of_a_time_window() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    int now = (int) (System.currentTimeMillis() / 1000);
+    for (int seconds : new int[]{300, 100, 200, 0}) {
+      collection.insert(new BasicDBObject("_id", ObjectId.createFromLegacyFormat(now - seconds, 1, 1)));
+    }
+
+    List<DBObject> objects = collection.find(new BasicDBObject("_id", new BasicDBObject("$gte", ObjectId.createFromLegacyFormat(now - 250, 0, 0))
+        .append("$lt", ObjectId.createFromLegacyFormat(now - 50, 0, 0)))).toArray();
+
+    assertEquals(Arrays.asList(new BasicDBObject("_id", ObjectId.createFromLegacyFormat(now - 200, 1, 1)),
+        new BasicDBObject("_id", ObjectId.createFromLegacyFormat(now - 100, 1, 1))), objects);
+  }
+
+  @Test
+  public void should_combine_bitmap_indexes_on_their_slots() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("status", "bitmap"));
+    collection.createIndex(new BasicDBObject("type", "bitmap"));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("status", i % 3 == 0 ? "done" : "new").append("type", i % 2 == 0 ? "a" : "b"));
+    }
+    IndexAbstract status = getIndex(collection, "status_bitmap");
+    IndexAbstract type = getIndex(collection, "type_bitmap");
+
+    assertEquals(17, collection.count(new BasicDBObject("status", "done").append("type", "a")));
+    assertEquals(1, status.getLookupCount());
+    assertEquals(1, type.getLookupCount());
+
+    // 34 "done", and 33 "new" of type "b".
+    assertEquals(67, collection.count(new BasicDBObject("$or", Arrays.asList(
+        new BasicDBObject("status", "done"), new BasicDBObject("status", "new").append("type", "b")))));
+    assertEquals(3, status.getLookupCount());
+    assertEquals(2, type.getLookupCount());
+
+    collection.update(new BasicDBObject("_id", 0), new BasicDBObject("$set", new BasicDBObject("type", "b")));
+    assertEquals(16, collection.count(new BasicDBObject("status", "done").append("type", "a")));
+  }
+
+  @Test
+  public void should_index_repeated_full_scans_with_adaptive_indexing() throws Exception {
+    FongoDBCollection collection = (FongoDBCollection) fongoRule.newCollection();
+    collection.enableAdaptiveIndexing(3, 10, 250);
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 10).append("s", "s" + i).append("t", i % 2));
+    }
+
+    assertEquals(10, collection.count(new BasicDBObject("n", 1)));
+    assertEquals(10, collection.count(new BasicDBObject("n", 2)));
+    assertEquals(0, collection.getAdaptiveIndexNames().size());
+    assertEquals(10, collection.count(new BasicDBObject("n", 3)));
+    assertEquals(Arrays.asList("adaptive_n_1"), collection.getAdaptiveIndexNames());
+    assertEquals(1, getIndex(collection, "adaptive_n_1").getLookupCount());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(1, collection.count(new BasicDBObject("s", "s" + i)));
+    }
+    assertEquals(Arrays.asList("adaptive_n_1", "adaptive_s_1"), collection.getAdaptiveIndexNames());
+
+    // Over the budget : the least recently used is dropped.
+    assertEquals(10, collection.count(new BasicDBObject("n", 4)));
+    for (int i = 0; i < 3; i++) {
+      assertEquals(50, collection.count(new BasicDBObject("t", i % 2)));
+    }
+    assertEquals(Arrays.asList("adaptive_n_1", "adaptive_t_1"), collection.getAdaptiveIndexNames());
+    assertEquals(3, collection.getIndexInfo().size());
+
+    collection.disableAdaptiveIndexing();
+    assertEquals(1, collection.getIndexInfo().size());
+  }
+
+  @Test
+  public void should_not_take_index_of_the_user_for_a_transient_one() throws Exception {
+    FongoDBCollection collection = (FongoDBCollection) fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1), new BasicDBObject("name", "adaptive_a_1").append("partialFilterExpression",
+        new BasicDBObject("a", new BasicDBObject("$gt", 5))));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+    collection.enableAdaptiveIndexing(1, 0, 1000);
+
+    assertEquals(Util.list(new BasicDBObject("_id", 1).append("a", 1)), collection.find(new BasicDBObject("a", 1)).toArray());
+    assertEquals(0, collection.getAdaptiveIndexNames().size());
+
+    collection.disableAdaptiveIndexing();
+    assertEquals(2, collection.getIndexInfo().size());
+  }
+
+  @Test
+  public void should_not_create_unique_bitmap_index() throws Exception {
+    ExpectedMongoException.expectCode(exception, 67, MongoException.class);
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("status", "bitmap"), new BasicDBObject("unique", true));
+  }
+
+  @Test
+  public void should_not_create_unique_hashed_index() throws Exception {
+    ExpectedMongoException.expectCode(exception, 16764, MongoException.class);
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("shard", "hashed"), new BasicDBObject("unique", true));
+  }
+
   @Test
   public void should_not_handled_hashed_index_on_array_before() throws Exception {
     ExpectedMongoException.expectCode(exception, 16244, MongoException.class);
@@ -752,6 +951,324 @@ public class FongoIndexTest {
     collection.insert(new BasicDBObject("date", new BasicDBList()));
   }
 
+  @Test
+  public void should_sort_with_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("date", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("date", (i * 7) % 10));
+    }
+    IndexAbstract index = getIndex(collection, "date_1");
+
+    DBCursor cursor = collection.find(new BasicDBObject("date", new BasicDBObject("$ne", 8)), new BasicDBObject("_id", 0))
+        .sort(new BasicDBObject("date", -1)).limit(3);
+    assertEquals(Arrays.asList(
+        new BasicDBObject("date", 9),
+        new BasicDBObject("date", 7),
+        new BasicDBObject("date", 6)
+    ), cursor.toArray());
+    assertEquals(1, index.getLookupCount());
+
+    cursor = collection.find(new BasicDBObject(), new BasicDBObject("_id", 0)).sort(new BasicDBObject("date", 1)).skip(1).limit(2);
+    assertEquals(Arrays.asList(
+        new BasicDBObject("date", 1),
+        new BasicDBObject("date", 2)
+    ), cursor.toArray());
+    assertEquals(2, index.getLookupCount());
+  }
+
+  @Test
+  public void should_not_sort_with_index_missing_objects() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("date", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("date", 2));
+    collection.insert(new BasicDBObject("_id", 2));
+    collection.insert(new BasicDBObject("_id", 3).append("date", 1));
+    IndexAbstract index = getIndex(collection, "date_1");
+
+    DBCursor cursor = collection.find().sort(new BasicDBObject("date", 1));
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 2),
+        new BasicDBObject("_id", 3).append("date", 1),
+        new BasicDBObject("_id", 1).append("date", 2)
+    ), cursor.toArray());
+    assertEquals(0, index.getLookupCount());
+  }
+
+  @Test
+  public void should_not_sort_with_index_on_array() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("date", 1));
+    collection.insert(new BasicDBObject("_id", 1).append("date", 2));
+    collection.insert(new BasicDBObject("_id", 2).append("date", Arrays.asList(3, 0)));
+    IndexAbstract index = getIndex(collection, "date_1");
+
+    collection.find().sort(new BasicDBObject("date", 1)).toArray();
+    assertEquals(0, index.getLookupCount());
+
+    collection.remove(new BasicDBObject("_id", 2));
+    collection.find().sort(new BasicDBObject("date", 1)).toArray();
+    assertEquals(1, index.getLookupCount());
+  }
+
+  @Test
+  public void should_find_range_with_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("ts", -1).append("kind", 1));
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("ts", i % 10).append("kind", i % 3));
+    }
+    collection.insert(new BasicDBObject("_id", 20).append("ts", "5").append("kind", 0));
+    collection.insert(new BasicDBObject("_id", 21).append("ts", null).append("kind", 0));
+    IndexAbstract index = getIndex(collection, "ts_-1_kind_1");
+
+    DBCursor cursor = collection.find(new BasicDBObject("ts", new BasicDBObject("$gt", 3).append("$lte", 5)).append("kind", new BasicDBObject("$ne", 2)))
+        .sort(new BasicDBObject("_id", 1));
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 4).append("ts", 4).append("kind", 1),
+        new BasicDBObject("_id", 15).append("ts", 5).append("kind", 0)
+    ), cursor.toArray());
+    assertEquals(1, index.getLookupCount());
+
+    cursor = collection.find(new BasicDBObject("ts", new BasicDBObject("$lt", 1)).append("kind", 0));
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 0).append("ts", 0).append("kind", 0)
+    ), cursor.toArray());
+    assertEquals(2, index.getLookupCount());
+
+    assertEquals(2, collection.count(new BasicDBObject("ts", 9).append("kind", new BasicDBObject("$gte", 0))));
+    assertEquals(3, index.getLookupCount());
+  }
+
+  @Test
+  public void should_find_in_with_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("userId", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", "id" + i).append("userId", i % 5));
+    }
+    IndexAbstract index = getIndex(collection, "userId_1");
+
+    DBCursor cursor = collection.find(new BasicDBObject("userId", new BasicDBObject("$in", Arrays.asList(3, 1, 7, 1.0))))
+        .sort(new BasicDBObject("_id", 1));
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", "id1").append("userId", 1),
+        new BasicDBObject("_id", "id3").append("userId", 3),
+        new BasicDBObject("_id", "id6").append("userId", 1),
+        new BasicDBObject("_id", "id8").append("userId", 3)
+    ), cursor.toArray());
+    assertEquals(1, index.getLookupCount());
+
+    assertEquals(2, collection.count(new BasicDBObject("_id", new BasicDBObject("$in", Arrays.asList("id2", "id4", "none")))));
+  }
+
+  @Test
+  public void should_find_or_with_indexes() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("b", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i).append("b", i % 3).append("c", i));
+    }
+    IndexAbstract indexA = getIndex(collection, "a_1");
+    IndexAbstract indexB = getIndex(collection, "b_1");
+
+    DBObject query = new BasicDBObject("$or", Arrays.asList(new BasicDBObject("a", 4), new BasicDBObject("b", 1)));
+    DBCursor cursor = collection.find(query, new BasicDBObject("a", 1)).sort(new BasicDBObject("_id", 1));
+    assertEquals(Arrays.asList(
+        new BasicDBObject("_id", 1).append("a", 1),
+        new BasicDBObject("_id", 4).append("a", 4),
+        new BasicDBObject("_id", 7).append("a", 7)
+    ), cursor.toArray());
+    assertEquals(1, indexA.getLookupCount());
+    assertEquals(1, indexB.getLookupCount());
+
+    // No index for "c" : scan of the collection.
+    query = new BasicDBObject("$or", Arrays.asList(new BasicDBObject("a", 4), new BasicDBObject("c", 5)));
+    assertEquals(2, collection.count(query));
+    assertEquals(1, indexA.getLookupCount());
+  }
+
+  @Test
+  public void should_use_the_most_selective_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("status", 1));
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("status", i % 2).append("email", "user" + i));
+    }
+    IndexAbstract indexStatus = getIndex(collection, "status_1");
+    assertEquals(2, indexStatus.distinctKeys());
+    assertEquals(50.0, indexStatus.averageBucket(), 0.0);
+
+    DBObject query = new BasicDBObject("status", 1).append("email", "user51");
+    assertEquals(1, collection.find(query).toArray().size());
+    assertEquals(1, indexStatus.getLookupCount());
+
+    // The plan of the query is forgotten with a new index.
+    collection.createIndex(new BasicDBObject("email", 1));
+    IndexAbstract indexEmail = getIndex(collection, "email_1");
+    assertEquals(1, collection.find(query).toArray().size());
+    assertEquals(1, indexStatus.getLookupCount());
+    assertEquals(1, indexEmail.getLookupCount());
+
+    collection.dropIndex("email_1");
+    assertEquals(1, collection.find(query).toArray().size());
+    assertEquals(2, indexStatus.getLookupCount());
+  }
+
+  @Test
+  public void should_plan_in_by_number_of_values() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("status", 1));
+    collection.createIndex(new BasicDBObject("email", 1));
+    List<String> emails = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("status", i % 2).append("email", "user" + i));
+      emails.add("user" + i);
+    }
+    IndexAbstract indexStatus = getIndex(collection, "status_1");
+    IndexAbstract indexEmail = getIndex(collection, "email_1");
+
+    assertEquals(1, collection.find(new BasicDBObject("email", new BasicDBObject("$in", Util.list("user1"))).append("status", 1)).toArray().size());
+    assertEquals(1, indexEmail.getLookupCount());
+    assertEquals(0, indexStatus.getLookupCount());
+
+    // Same shape, but the $in reads more objects than the status.
+    assertEquals(50, collection.find(new BasicDBObject("email", new BasicDBObject("$in", emails)).append("status", 1)).toArray().size());
+    assertEquals(1, indexEmail.getLookupCount());
+    assertEquals(1, indexStatus.getLookupCount());
+  }
+
+  @Test
+  public void should_intersect_selective_indexes() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1));
+    collection.createIndex(new BasicDBObject("b", 1));
+    for (int i = 0; i < 1000; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i % 20).append("b", i % 25));
+    }
+    IndexAbstract indexA = getIndex(collection, "a_1");
+    IndexAbstract indexB = getIndex(collection, "b_1");
+
+    List<DBObject> objects = collection.find(new BasicDBObject("a", 3).append("b", 3)).sort(new BasicDBObject("_id", 1)).toArray();
+    assertEquals(10, objects.size());
+    assertEquals(new BasicDBObject("_id", 903).append("a", 3).append("b", 3), objects.get(9));
+    assertEquals(1, indexA.getLookupCount());
+    assertEquals(1, indexB.getLookupCount());
+
+    // Not selective : only one index.
+    assertEquals(500, collection.count(new BasicDBObject("a", new BasicDBObject("$gte", 10)).append("b", new BasicDBObject("$gte", 0))));
+    assertEquals(3, indexA.getLookupCount() + indexB.getLookupCount());
+  }
+
+  @Test
+  public void should_answer_covered_queries_from_index_keys() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "user" + (i % 5) + "@fongo").append("name", "name" + i));
+    }
+    IndexAbstract index = getIndex(collection, "email_1");
+
+    List<DBObject> objects = collection.find(new BasicDBObject("email", new BasicDBObject("$gte", "user3")),
+        new BasicDBObject("email", 1).append("_id", 0)).sort(new BasicDBObject("email", -1)).toArray();
+    assertEquals(Arrays.asList(new BasicDBObject("email", "user4@fongo"), new BasicDBObject("email", "user4@fongo"),
+        new BasicDBObject("email", "user3@fongo"), new BasicDBObject("email", "user3@fongo")), objects);
+    assertEquals(1, index.getLookupCount());
+
+    assertEquals(2, collection.count(new BasicDBObject("email", "user1@fongo")));
+    assertEquals(2, index.getLookupCount());
+
+    assertEquals(Arrays.asList("user0@fongo", "user1@fongo"), collection.distinct("email", new BasicDBObject("email", new BasicDBObject("$lt", "user2"))));
+    assertEquals(3, index.getLookupCount());
+
+    // _id is not in the index : the objects are read.
+    assertEquals(new BasicDBObject("_id", 1).append("email", "user1@fongo"),
+        collection.findOne(new BasicDBObject("email", "user1@fongo"), new BasicDBObject("email", 1)));
+  }
+
+  @Test
+  public void should_probe_arrays_elements_in_index() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("tags", 1));
+    collection.createIndex(new BasicDBObject("items.price", 1));
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("tags", Util.list("t" + (i % 4), "t" + (i % 5)))
+          .append("items", Util.list(new BasicDBObject("price", i), new BasicDBObject("price", i + 100))));
+    }
+    IndexAbstract tags = getIndex(collection, "tags_1");
+    IndexAbstract prices = getIndex(collection, "items.price_1");
+    assertEquals(20, tags.size());
+
+    assertEquals(8, collection.count(new BasicDBObject("tags", "t1")));
+    assertEquals(1, tags.getLookupCount());
+    assertEquals(Util.list(new BasicDBObject("_id", 1).append("tags", Util.list("t1", "t1"))
+            .append("items", Util.list(new BasicDBObject("price", 1), new BasicDBObject("price", 101)))),
+        collection.find(new BasicDBObject("tags", "t1").append("_id", 1)).toArray());
+
+    // Each bound can be matched by another element.
+    assertEquals(20, collection.count(new BasicDBObject("items.price", new BasicDBObject("$gt", 50).append("$lt", 60))));
+    assertEquals(2, collection.count(new BasicDBObject("items.price", new BasicDBObject("$lt", 2))));
+    assertEquals(2, prices.getLookupCount());
+
+    collection.update(new BasicDBObject("_id", 1), new BasicDBObject("$set", new BasicDBObject("tags", Util.list("t9"))));
+    assertEquals(7, collection.count(new BasicDBObject("tags", "t1")));
+    assertEquals(1, collection.count(new BasicDBObject("tags", "t9")));
+    assertEquals(20, tags.size());
+  }
+
+  @Test
+  public void should_partial_index_hold_only_matching_objects() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("email", 1), new BasicDBObject("partialFilterExpression",
+        new BasicDBObject("active", true).append("age", new BasicDBObject("$gte", 18))));
+    collection.createIndex(new BasicDBObject("nick", 1), new BasicDBObject("sparse", true));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("email", "user" + i).append("active", i % 2 == 0).append("age", 10 + i));
+    }
+    collection.insert(new BasicDBObject("_id", 10).append("nick", "nick"));
+    IndexAbstract partial = getIndex(collection, "email_1");
+    IndexAbstract sparse = getIndex(collection, "nick_1");
+    assertEquals(1, sparse.size());
+    // Only 8 is active and adult.
+    assertEquals(1, partial.size());
+
+    // The filter is implied : the index is used.
+    assertEquals(1, collection.count(new BasicDBObject("email", "user8").append("active", true).append("age", new BasicDBObject("$gte", 18))));
+    assertEquals(1, partial.getLookupCount());
+    // The filter is not implied : the index is not used.
+    assertEquals(1, collection.count(new BasicDBObject("email", "user7").append("age", new BasicDBObject("$gt", 10))));
+    assertEquals(1, collection.count(new BasicDBObject("email", "user4").append("active", true)));
+    assertEquals(1, partial.getLookupCount());
+
+    // Updates enter and leave the index.
+    collection.update(new BasicDBObject("_id", 9), new BasicDBObject("$set", new BasicDBObject("active", true)));
+    assertEquals(2, partial.size());
+    collection.update(new BasicDBObject("_id", 8), new BasicDBObject("$set", new BasicDBObject("age", 3)));
+    assertEquals(1, partial.size());
+    assertEquals(Util.list(new BasicDBObject("_id", 9).append("email", "user9").append("active", true).append("age", 19)),
+        collection.find(new BasicDBObject("email", "user9").append("active", true).append("age", 19)).toArray());
+    assertEquals(2, partial.getLookupCount());
+  }
+
+  @Test
+  public void should_not_reuse_partial_index_of_a_query_of_same_shape() throws Exception {
+    DBCollection collection = fongoRule.newCollection();
+    collection.createIndex(new BasicDBObject("a", 1), new BasicDBObject("partialFilterExpression",
+        new BasicDBObject("a", new BasicDBObject("$gt", 5))));
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("a", i));
+    }
+    IndexAbstract partial = getIndex(collection, "a_1");
+
+    assertEquals(1, collection.count(new BasicDBObject("a", 7)));
+    assertEquals(1, partial.getLookupCount());
+    // Same shape, but not in the index.
+    assertEquals(1, collection.count(new BasicDBObject("a", 2)));
+    assertEquals(Util.list(new BasicDBObject("_id", 2).append("a", 2)), collection.find(new BasicDBObject("a", 2)).toArray());
+    assertEquals(1, partial.getLookupCount());
+  }
+
   static IndexAbstract getIndex(DBCollection collection, String name) {
     FongoDBCollection fongoDBCollection = (FongoDBCollection) collection;
 
@@ -25,6 +25,7 @@ import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.util.JSON;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -1427,6 +1428,138 @@ public class FongoTest {
     }
   }
 
+  @Test(timeout = 16000)
+  public void testMultiThreadReadWhileWriting() throws Exception {
+    final DBCollection col = newCollection();
+    col.createIndex(new BasicDBObject("n", 1));
+    for (int i = 0; i < 100; i++) {
+      col.insert(new BasicDBObject("_id", i).append("n", i % 10));
+    }
+
+    int threads = 8;
+    final CountDownLatch lockDone = new CountDownLatch(threads);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 200; i++) {
+              if (thread == 0) {
+                col.update(new BasicDBObject("n", i % 10), new BasicDBObject("$inc", new BasicDBObject("count", 1)), false, true);
+              } else {
+                assertEquals(10, col.find(new BasicDBObject("n", i % 10)).toArray().size());
+                assertEquals(100, col.count());
+              }
+            }
+          } catch (Throwable throwable) {
+            errors.add(throwable);
+          } finally {
+            lockDone.countDown();
+          }
+        }
+      }.start();
+    }
+
+    assertTrue("Too long :-(", lockDone.await(15, TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), errors);
+    assertEquals(100, col.count(new BasicDBObject("count", 20)));
+  }
+
+  // A scan must never see a multi update half applied.
+  @Test(timeout = 16000)
+  public void testMultiUpdateIsNotSeenHalfApplied() throws Exception {
+    final DBCollection col = newCollection();
+    for (int i = 0; i < 100; i++) {
+      col.insert(new BasicDBObject("_id", i).append("count", 0));
+    }
+
+    int threads = 4;
+    final CountDownLatch lockDone = new CountDownLatch(threads);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              if (thread == 0) {
+                col.update(new BasicDBObject(), new BasicDBObject("$inc", new BasicDBObject("count", 1)), false, true);
+              } else {
+                List<DBObject> objects = col.find().toArray();
+                assertEquals(100, objects.size());
+                Object count = objects.get(0).get("count");
+                for (DBObject object : objects) {
+                  assertEquals(count, object.get("count"));
+                }
+              }
+            }
+          } catch (Throwable throwable) {
+            errors.add(throwable);
+          } finally {
+            lockDone.countDown();
+          }
+        }
+      }.start();
+    }
+
+    assertTrue("Too long :-(", lockDone.await(15, TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), errors);
+    assertEquals(100, col.count(new BasicDBObject("count", 100)));
+  }
+
+  @Test
+  public void testFindByBatchKeepsItsSnapshot() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 2));
+    }
+
+    DBCursor cursor = collection.find(new BasicDBObject("n", 1)).batchSize(2);
+    assertEquals(new BasicDBObject("_id", 1).append("n", 1), cursor.next());
+    collection.remove(new BasicDBObject());
+
+    List<Object> ids = new ArrayList<Object>();
+    while (cursor.hasNext()) {
+      ids.add(cursor.next().get("_id"));
+    }
+    assertEquals(Arrays.<Object>asList(3, 5, 7, 9), ids);
+    assertEquals(0, collection.count());
+  }
+
+  @Test
+  public void testFindSkipLimitByBatch() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 10; i++) {
+      collection.insert(new BasicDBObject("_id", i));
+    }
+
+    List<DBObject> result = collection.find().skip(2).limit(5).batchSize(2).toArray();
+    assertEquals(Arrays.<DBObject>asList(new BasicDBObject("_id", 2), new BasicDBObject("_id", 3), new BasicDBObject("_id", 4),
+        new BasicDBObject("_id", 5), new BasicDBObject("_id", 6)), result);
+  }
+
+  @Test
+  public void testSortLimitKeepsOrderOfEqualValues() {
+    DBCollection collection = newCollection();
+    for (int i = 0; i < 20; i++) {
+      collection.insert(new BasicDBObject("_id", i).append("n", i % 3));
+    }
+
+    List<Object> ids = new ArrayList<Object>();
+    for (DBObject object : collection.find().sort(new BasicDBObject("n", 1)).skip(2).limit(5)) {
+      ids.add(object.get("_id"));
+    }
+    assertEquals(Arrays.<Object>asList(6, 9, 12, 15, 18), ids);
+
+    ids.clear();
+    for (DBObject object : collection.find(new BasicDBObject("_id", new BasicDBObject("$gt", 4))).sort(new BasicDBObject("n", -1)).limit(3)) {
+      ids.add(object.get("_id"));
+    }
+    assertEquals(Arrays.<Object>asList(5, 8, 11), ids);
+    assertEquals(new BasicDBObject("_id", 17).append("n", 2), collection.findOne(new BasicDBObject(), null, new BasicDBObject("n", -1).append("_id", -1)));
+  }
+
   // Don't know why, but request by _id only return document event if limit is set
   @Test
   public void testFindLimit0ById() throws Exception {
@@ -273,6 +273,27 @@ public class ExpressionParserTest {
     ), results);
   }
 
+  @Test
+  public void testInOperatorWithNumbersOfOtherTypes() {
+    DBObject query = new BasicDBObjectBuilder().push("a").add("$in", asList(3, 4.0D, 0.0D)).pop().get();
+    List<DBObject> results = doFilter(
+        query,
+        new BasicDBObject("a", 3L),
+        new BasicDBObject("a", 4),
+        new BasicDBObject("a", 4.5D),
+        new BasicDBObject("a", asList(1, 0)),
+        new BasicDBObject("a", "4")
+    );
+    assertEquals(Arrays.<DBObject>asList(
+        new BasicDBObject("a", 3L),
+        new BasicDBObject("a", 4),
+        new BasicDBObject("a", asList(1, 0))
+    ), results);
+    DBObject ninQuery = new BasicDBObjectBuilder().push("a").add("$nin", asList(4.0D)).pop().get();
+    assertEquals(Arrays.<DBObject>asList(new BasicDBObject("a", 3)),
+        doFilter(ninQuery, new BasicDBObject("a", 4), new BasicDBObject("a", 3)));
+  }
+
   @Test
   public void testInEmbeddedOperator() {
     DBObject query = new BasicDBObject("a.b", new BasicDBObject("$in", asList(2)));
@@ -928,6 +949,43 @@ public class ExpressionParserTest {
     ));
   }
 
+  @Test
+  public void testCompiledFilterMatchesTheFilters() {
+    ExpressionParser ep = new ExpressionParser();
+    List<DBObject> input = Arrays.<DBObject>asList(
+        new BasicDBObject("a", null),
+        new BasicDBObject("b", 2),
+        new BasicDBObject("a", 1).append("n", "neil"),
+        new BasicDBObject("a", 2.0).append("n", "fred"),
+        new BasicDBObject("a", 3L).append("n", "ted"),
+        new BasicDBObject("a", "4").append("n", "stu"),
+        new BasicDBObject("a", asList(3, 4)),
+        new BasicDBObject("a", new BasicDBObject("b", 3)),
+        new BasicDBObject("a", asList(new BasicDBObject("b", 1), new BasicDBObject("b", 4)))
+    );
+    for (int value = 0; value < 5; value++) {
+      List<DBObject> queries = Arrays.<DBObject>asList(
+          new BasicDBObject("a", value),
+          new BasicDBObject("a", null),
+          new BasicDBObject("a", new BasicDBObject("$gt", value).append("$lte", value + 2)),
+          new BasicDBObject("a", new BasicDBObject("$in", asList(value, null))),
+          new BasicDBObject("a", new BasicDBObject("$nin", asList(value))).append("n", "ted"),
+          new BasicDBObject("a", new BasicDBObject("$ne", value)),
+          new BasicDBObject("a", new BasicDBObject("$exists", value % 2 == 0)),
+          new BasicDBObject("a.b", value),
+          new BasicDBObject("a.b", new BasicDBObject("$gte", value)),
+          new BasicDBObject("a.b", new BasicDBObject("$nin", asList(value)))
+      );
+      for (DBObject query : queries) {
+        Filter compiled = ep.buildFilter(query);
+        Filter filter = ep.buildFilter(query, query.keySet());
+        for (DBObject dbo : input) {
+          assertEquals(query + " on " + dbo, filter.apply(dbo), compiled.apply(dbo));
+        }
+      }
+    }
+  }
+
   private void assertQuery(BasicDBObject query, List<DBObject> expected) {
     List<DBObject> results = doFilter(
         query,
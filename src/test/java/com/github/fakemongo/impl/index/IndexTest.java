@@ -2,10 +2,12 @@ package com.github.fakemongo.impl.index;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Arrays;
 import java.util.UUID;
 
 import org.junit.Test;
 
+import com.github.fakemongo.impl.Util;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 
@@ -153,4 +155,207 @@ public class IndexTest {
     final String fithLevelValue = (String) topLevelObject.get(FIFTH_LEVEL_KEY);
     assertThat(fithLevelValue).isEqualTo(FIFTH_LEVEL_VALUE);
   }
+
+  /**
+   * Test the statistics of {@link Index} are maintained on add and remove.
+   */
+  @Test
+  public void testStatisticsAfterAddAndRemove() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("status", 1), !UNIQUE);
+    final DBObject[] objects = new DBObject[4];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = new BasicDBObject(ID_KEY, i).append("status", i == 3 ? "done" : "new");
+      iut.addOrUpdate(objects[i], null);
+    }
+
+    assertThat(iut.size()).isEqualTo(4);
+    assertThat(iut.distinctKeys()).isEqualTo(2);
+    // (3 * 3 + 1 * 1) / 4
+    assertThat(iut.averageBucket()).isEqualTo(2.5);
+
+    iut.remove(objects[3]);
+    iut.remove(objects[0]);
+
+    assertThat(iut.size()).isEqualTo(2);
+    assertThat(iut.distinctKeys()).isEqualTo(1);
+    assertThat(iut.averageBucket()).isEqualTo(2.0);
+  }
+
+  @Test
+  public void testOneEntryForEachElementOfAnArray() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("tags", 1), !UNIQUE);
+    final DBObject object = new BasicDBObject(ID_KEY, 1).append("tags", Util.list("a", "b", "b", "c"));
+    iut.addOrUpdate(object, null);
+    iut.addOrUpdate(new BasicDBObject(ID_KEY, 2).append("tags", "b"), null);
+
+    assertThat(iut.size()).isEqualTo(2);
+    assertThat(iut.distinctKeys()).isEqualTo(3);
+    assertThat(iut.values()).hasSize(2);
+    assertThat(iut.retrieveObjects(new BasicDBObject("tags", "b"))).hasSize(2);
+    assertThat(iut.retrieveObjects(new BasicDBObject("tags", new BasicDBObject("$gte", "b")))).hasSize(2);
+
+    iut.remove(object);
+
+    assertThat(iut.size()).isEqualTo(1);
+    assertThat(iut.distinctKeys()).isEqualTo(1);
+    assertThat(iut.averageBucket()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void testKeyReadsLikeTheProjection() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("a.b", 1).append("c", -1), !UNIQUE);
+    final DBObject object = new BasicDBObject(ID_KEY, 1).append("a", new BasicDBObject("b", 2).append("d", 3)).append("c", "x");
+    final DBObject key = iut.getKeyFor(object);
+
+    assertThat(key.keySet()).containsExactly("a", "c");
+    assertThat(key.get("a")).isEqualTo(new BasicDBObject("b", 2));
+    assertThat(key.get("c")).isEqualTo("x");
+    assertThat(key.containsField(ID_KEY)).isFalse();
+    assertThat(key.toMap()).isEqualTo(new BasicDBObject("a", new BasicDBObject("b", 2)).append("c", "x").toMap());
+    assertThat(key).isEqualTo(iut.getKeyFor(new BasicDBObject("c", "x").append("a", new BasicDBObject("b", 2))));
+    assertThat(key.hashCode()).isEqualTo(iut.getKeyFor(new BasicDBObject("c", "x").append("a", new BasicDBObject("b", 2))).hashCode());
+  }
+
+  @Test
+  public void testNumbersOfDifferentTypesInTheSameIndex() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("n", 1), !UNIQUE);
+    final Object[] values = {3L, 1, 2.5D, 9007199254740993L, 9007199254740992D, 2, 2.0D};
+    for (int i = 0; i < values.length; i++) {
+      iut.addOrUpdate(new BasicDBObject(ID_KEY, i).append("n", values[i]), null);
+    }
+
+    // 2 and 2.0 have the same key, 2^53 + 1 is after 2^53 even if they are equal as doubles.
+    assertThat(iut.distinctKeys()).isEqualTo(6);
+    assertThat(iut.retrieveObjects(new BasicDBObject("n", new BasicDBObject("$gt", 2).append("$lte", 3)))).containsExactly(
+        new BasicDBObject(ID_KEY, 2).append("n", 2.5D), new BasicDBObject(ID_KEY, 0).append("n", 3L));
+    assertThat(iut.retrieveObjects(new BasicDBObject("n", new BasicDBObject("$gt", 9007199254740992L)))).containsExactly(
+        new BasicDBObject(ID_KEY, 3).append("n", 9007199254740993L));
+  }
+
+  @Test
+  public void testIndexesShareTheSlotsOfTheRecordStore() {
+    final RecordStore records = new RecordStore();
+    final Index status = new Index(INDEX_NAME, new BasicDBObject("status", 1), !UNIQUE, false, null, records);
+    final Index tags = new Index(INDEX_NAME, new BasicDBObject("tags", 1), !UNIQUE, false, null, records);
+    final DBObject first = new BasicDBObject(ID_KEY, 1).append("status", "new").append("tags", Util.list("a", "b"));
+    final DBObject second = new BasicDBObject(ID_KEY, 2).append("status", "new").append("tags", "a");
+    for (DBObject object : new DBObject[]{first, second}) {
+      status.addOrUpdate(object, null);
+      tags.addOrUpdate(object, null);
+    }
+
+    assertThat(records.size()).isEqualTo(2);
+    assertThat(status.retrieveObjects(new BasicDBObject("status", "new"))).containsExactly(first, second);
+
+    // An equal copy is removed like the object itself.
+    status.remove(new BasicDBObject(ID_KEY, 1).append("status", "new").append("tags", Util.list("a", "b")));
+    tags.remove(first);
+    records.remove(first);
+
+    assertThat(status.retrieveObjects(new BasicDBObject("status", "new"))).containsExactly(second);
+    assertThat(tags.retrieveObjects(new BasicDBObject("tags", "a"))).containsExactly(second);
+    assertThat(records.slotOf(first)).isEqualTo(-1);
+    assertThat(records.add(new BasicDBObject(ID_KEY, 3))).isEqualTo(0);
+  }
+
+  @Test
+  public void testRemoveFromABigBucketKeepsTheInsertionOrder() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("status", 1), !UNIQUE);
+    final DBObject[] objects = new DBObject[40];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = new BasicDBObject(ID_KEY, i).append("status", "new");
+      iut.addOrUpdate(objects[i], null);
+    }
+    // Every object but the multiples of 5.
+    for (int i = 0; i < objects.length; i++) {
+      if (i % 5 != 0) {
+        iut.remove(objects[i]);
+      }
+    }
+    iut.addOrUpdate(objects[1], null);
+
+    assertThat(iut.size()).isEqualTo(9);
+    assertThat(iut.averageBucket()).isEqualTo(9.0);
+    assertThat(iut.retrieveObjects(new BasicDBObject("status", "new"))).containsExactly(
+        objects[0], objects[5], objects[10], objects[15], objects[20], objects[25], objects[30], objects[35], objects[1]);
+  }
+
+  @Test
+  public void testPositionalAccessToABucketWithHoles() {
+    final RecordStore records = new RecordStore();
+    final SlotList<DBObject> iut = new SlotList<DBObject>(records);
+    final DBObject[] objects = new DBObject[100];
+    for (int i = 0; i < objects.length; i++) {
+      objects[i] = new BasicDBObject(ID_KEY, i);
+      iut.add(objects[i]);
+    }
+    // Holes at the front.
+    for (int i = 0; i < 10; i++) {
+      assertThat(iut.remove(0)).isEqualTo(objects[i]);
+    }
+    assertThat(iut.get(0)).isEqualTo(objects[10]);
+    // Holes in the middle : every odd object.
+    for (int i = 11; i < objects.length; i += 2) {
+      assertThat(iut.remove(objects[i])).isTrue();
+    }
+
+    assertThat(iut.size()).isEqualTo(45);
+    for (int i = 0; i < iut.size(); i++) {
+      assertThat(iut.get(i)).isEqualTo(objects[10 + 2 * i]);
+    }
+    assertThat(iut.contains(objects[11])).isFalse();
+    assertThat(iut.contains(objects[98])).isTrue();
+    assertThat(iut.indexOf(objects[98])).isEqualTo(44);
+    assertThat(iut.remove(objects[98])).isTrue();
+    assertThat(iut.contains(objects[98])).isFalse();
+    assertThat(iut).endsWith(objects[94], objects[96]);
+  }
+
+  @Test
+  public void testUpdateWithoutChangeOfKeyReplacesTheObjectInPlace() {
+    final Index iut = new Index(INDEX_NAME, new BasicDBObject("status", 1), !UNIQUE);
+    final DBObject first = new BasicDBObject(ID_KEY, 1).append("status", "new").append("count", 1);
+    final DBObject second = new BasicDBObject(ID_KEY, 2).append("status", "new").append("count", 1);
+    iut.addOrUpdate(first, null);
+    iut.addOrUpdate(second, null);
+
+    final DBObject counted = new BasicDBObject(ID_KEY, 1).append("status", "new").append("count", 2);
+    iut.addOrUpdate(counted, first);
+
+    // Still first in its bucket.
+    assertThat(iut.retrieveObjects(new BasicDBObject("status", "new"))).containsExactly(counted, second);
+    assertThat(iut.size()).isEqualTo(2);
+    assertThat(iut.averageBucket()).isEqualTo(2.0);
+
+    final DBObject done = new BasicDBObject(ID_KEY, 1).append("status", "done").append("count", 2);
+    iut.addOrUpdate(done, counted);
+
+    assertThat(iut.retrieveObjects(new BasicDBObject("status", "new"))).containsExactly(second);
+    assertThat(iut.retrieveObjects(new BasicDBObject("status", "done"))).containsExactly(done);
+    assertThat(iut.distinctKeys()).isEqualTo(2);
+  }
+
+  @Test
+  public void testBitmapIndexGivesTheSlotsOfTheValues() {
+    final RecordStore records = new RecordStore();
+    final IndexAbstract iut = IndexFactory.create(INDEX_NAME, new BasicDBObject("status", "bitmap"), !UNIQUE, false, null, records);
+    final DBObject first = new BasicDBObject(ID_KEY, 1).append("status", "new");
+    final DBObject second = new BasicDBObject(ID_KEY, 2).append("status", "done");
+    final DBObject third = new BasicDBObject(ID_KEY, 3).append("status", 5);
+    for (DBObject object : new DBObject[]{first, second, third}) {
+      records.add(object);
+      iut.addOrUpdate(object, null);
+    }
+
+    assertThat(iut.canRetrieveSlots(new BasicDBObject("status", new BasicDBObject("$gt", "a")))).isFalse();
+    assertThat(iut.retrieveSlots(new BasicDBObject("status", "new")).cardinality()).isEqualTo(1);
+    assertThat(iut.retrieveSlots(new BasicDBObject("status", new BasicDBObject("$in", Arrays.asList("new", 5.0, "other"))))
+        .cardinality()).isEqualTo(2);
+
+    iut.remove(first);
+    records.remove(first);
+
+    assertThat(iut.retrieveSlots(new BasicDBObject("status", "new")).isEmpty()).isTrue();
+    assertThat(iut.retrieveObjects(new BasicDBObject("status", "done"))).containsExactly(second);
+  }
 }